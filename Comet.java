@@ -49,6 +49,8 @@ public class Comet {
     public Roi cometRoi;
     public Roi headRoi;
     public Roi oldRoi;
+    // ID label drawn next to the comet in the output overlay
+    public Roi labelRoi;
 
     // Position in image
     public int x,y, height, width;
@@ -33,290 +33,833 @@ import ij.gui.*;
 import ij.plugin.filter.*;
 import ij.process.*;
 import ij.measure.Measurements;
+import ij.measure.ResultsTable;
 
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Vector;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A CometAnalyzer holds only its settings, so it is cheap to create.
+// The batch engine makes one per image instead of sharing an instance.
+// The hot image kernels are package-private so bench/CometBenchmark can time them.
 public class CometAnalyzer {
     public static int COMETFIND_BGCORRECT = 1;
     public static int HEADFIND_AUTO = 2;
     public static int HEADFIND_PROFILE = 4;
     public static int HEADFIND_BRIGHTEST = 8;
-    private int activeChannel;
+    // Split blobs of touching comets at higher thresholds
+    public static int COMETFIND_SPLIT = 16;
+    // Smallest particle taken as a comet
+    private static final int COMET_MIN_AREA = 400;
+    // Margin around a blob in which its parts are traced
+    private static final int SPLIT_MARGIN = 16;
+    // Regions at least this large are binarized through a lookup table
+    private static final int LUT_THRESHOLD_MIN_PIXELS = 65536;
+    // RGB channel analyzed: 0 picks the brightest, 1-3 are red, green and blue
+    private int activeChannel = 0;
     private String thresholdMethod = "Triangle"; // Default threshold method
+    private Executor measureExecutor = getDefaultExecutor();
+    private CometMetrics metrics = new CometMetrics("image");
+    // Images larger than tileSize are searched tile by tile; 0 turns it off
+    private int tileSize = 0;
+    private int tileHalo = DEFAULT_TILE_HALO;
+    public static final int DEFAULT_TILE_HALO = 256;
+    // Median filters of the background correction; both give the same result
+    public static final int MEDIAN_HISTOGRAM = 0;
+    public static final int MEDIAN_RANKFILTERS = 1;
+    // Rows of an image per median band, so small images are not split up
+    private static final int MEDIAN_MIN_BAND = 64;
+    private int medianEngine = MEDIAN_HISTOGRAM;
+    private CometPreprocessCache preprocessCache;
+    // Set by another thread to stop the analysis, or null
+    private AtomicBoolean cancelFlag;
+
+    // Thrown by cometAnalyzerRun when it stops for the cancel flag
+    public static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException() {
+            super("analysis cancelled");
+        }
+    }
 
     public void setThresholdMethod(String method) {
         this.thresholdMethod = method;
     }
 
-    public Comet[] cometAnalyzerRun(ImagePlus img_orig, int cometOptions) {
-    // ----- Setting up given image
-        ImageProcessor ip = img_orig.getProcessor();
-        // Type of original image
-        int imgOriginalType = img_orig.getType();
-        // Make a grayscale template from the imate
-        ByteProcessor ip_gs_template = getGrayscaleCopy(ip,imgOriginalType);
-        // Make two copies of the grayscale image
-        ByteProcessor ip_gs = getGrayscaleCopy(ip_gs_template,ImagePlus.GRAY8);
-        ByteProcessor ip_gs2 = getGrayscaleCopy(ip_gs_template,ImagePlus.GRAY8);
-        //-----------------------------
+    // Executor for per-comet measurement, median bands and tiles; use
+    // r -> r.run() to run them serially. CometBatch gives its own pool.
+    public void setMeasureExecutor(Executor executor) {
+        this.measureExecutor = executor;
+    }
+
+    // Pool of analyses run outside a batch. The common pool is not used:
+    // on machines with one or two processors CompletableFuture replaces it
+    // with a new thread per task, and it is shared with the rest of Fiji.
+    private static ForkJoinPool defaultExecutor;
+
+    private static synchronized Executor getDefaultExecutor() {
+        if(defaultExecutor == null){
+            defaultExecutor = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    new CometBatch.WorkerFactory("OpenComet-analyzer-"), null, false);
+            }
+        return defaultExecutor;
+    }
 
-        ImagePlus img_gs = new ImagePlus("tmpimg",ip_gs);
+    // Stage timings and comet counts are recorded here
+    public void setMetrics(CometMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CometMetrics getMetrics() {
+        return metrics;
+    }
 
-        //----- Global background correction-----
-        if((cometOptions & COMETFIND_BGCORRECT)!=0){
-            RankFilters rf = new RankFilters();
-            rf.rank(ip_gs, 10.0, RankFilters.MEDIAN);
+    // Analyze this channel of RGB images (1 red, 2 green, 3 blue) instead
+    // of the brightest one, which saves a pass over the image
+    public void setChannel(int channel) {
+        this.activeChannel = (channel >= 1 && channel <= 3) ? channel : 0;
+    }
+
+    // Median filter of the background correction: MEDIAN_HISTOGRAM, the
+    // sliding histogram of MedianKernels run in row bands, or
+    // MEDIAN_RANKFILTERS, ImageJ's RankFilters
+    public void setMedianEngine(int engine) {
+        this.medianEngine = engine;
+    }
 
-            BackgroundSubtracter bSub = new BackgroundSubtracter();
-            double radiusRollingBall = Math.min(ip_gs.getHeight(),ip_gs.getWidth())*0.3;
-            bSub.rollingBallBackground(ip_gs, radiusRollingBall, false,
-                                    false, false, false, true);
+    // Keep background corrected images in this cache, or null for none.
+    // Tiled searches are not cached.
+    public void setPreprocessCache(CometPreprocessCache cache) {
+        this.preprocessCache = cache;
+    }
+
+    // Stop the analysis when this flag is set. It is checked between the
+    // stages of an image and between comets, and cometAnalyzerRun then
+    // throws a CancelledException.
+    public void setCancelFlag(AtomicBoolean cancel) {
+        this.cancelFlag = cancel;
+    }
+
+    private void checkCancelled(){
+        if(cancelFlag != null && cancelFlag.get()) throw new CancelledException();
         }
+
+    // Search images larger than tileSize pixels in tiles of that size, each
+    // read with a margin of halo pixels. The halo must be at least as wide
+    // as the largest comet; 0 searches the whole image at once.
+    public void setTiling(int tileSize, int halo) {
+        this.tileSize = Math.max(0, tileSize);
+        this.tileHalo = Math.max(0, halo);
+    }
+
+    // Find and measure the comets of an image. The image is neither changed
+    // nor closed; the caller owns it and may still draw from it.
+    public Comet[] cometAnalyzerRun(ImagePlus img_orig, int cometOptions) {
+        return run(img_orig.getProcessor(), img_orig.getType(), null, cometOptions);
+    }
+
+    // Find and measure the comets of an 8-bit image read through a tile
+    // source. With tiling on, the image is never read whole.
+    public Comet[] cometAnalyzerRun(CometTileSource source, int cometOptions) {
+        return run(null, ImagePlus.GRAY8, source, cometOptions);
+    }
+
+    private Comet[] run(ImageProcessor ip, int imgType, CometTileSource source, int cometOptions) {
+        // Pixel buffers are leased from this thread's arena for the
+        // analysis and given back when it ends, however it ends
+        CometArena arena = CometArena.get();
+        ArrayList<byte[]> leased = new ArrayList<byte[]>();
+        try {
+            return analyzeImage(ip, imgType, source, cometOptions, arena, leased);
+            }
+        finally {
+            for(byte[] buffer : leased){
+                arena.release(buffer);
+                }
+            }
+    }
+
+    // Either ip or source is given
+    private Comet[] analyzeImage(ImageProcessor ip, int imgOriginalType, CometTileSource source,
+                                 int cometOptions, CometArena arena, ArrayList<byte[]> leased) {
+    // ----- Setting up given image
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        int width = (ip != null) ? ip.getWidth() : source.getWidth();
+        int height = (ip != null) ? ip.getHeight() : source.getHeight();
+        // Large images are searched for comets tile by tile
+        boolean tiled = tileSize > 0 && (width > tileSize || height > tileSize);
+        // The input image is never changed. Comets are measured on copies
+        // of the pixels around them, read from the source, so a tiled
+        // search needs no full-size buffer. A whole-image search binarizes
+        // ip_gs, a copy of the 8-bit template: 8-bit images as they are,
+        // 16-bit and RGB images converted into a buffer of their own.
+        ByteProcessor ip_gs_template = null, ip_gs = null;
+        if(!tiled){
+            if(ip == null){
+                ip = source.getTile(new Rectangle(0, 0, width, height));
+                }
+            ip_gs_template = (imgOriginalType == ImagePlus.GRAY8) ?
+                    (ByteProcessor)ip : getGrayscale(ip,imgOriginalType,arena,leased);
+            ip_gs = getGrayscale(ip_gs_template,ImagePlus.GRAY8,arena,leased);
+            source = new ImageTiles(ip_gs_template, ImagePlus.GRAY8);
+            }
+        else if(source == null){
+            source = new ImageTiles(ip, imgOriginalType);
+            }
+        metrics.record(CometMetrics.GRAYSCALE, t0, a0);
+        checkCancelled();
+        //-----------------------------
+
+        Roi[] cometRois;
+        int threshValue = 0;
+        byte[] gray = null;
+        if(tiled){
+            cometRois = findCometRoisTiled(source, cometOptions);
+            }
+        else {
+            //----- Global background correction-----
+            if((cometOptions & COMETFIND_BGCORRECT)!=0){
+                double radiusRollingBall = Math.min(ip_gs.getHeight(),ip_gs.getWidth())*0.3;
+                if(preprocessCache == null){
+                    correctGlobalBackground(ip_gs, radiusRollingBall);
+                    }
+                else {
+                    correctGlobalBackgroundCached(ip_gs, ip_gs_template, radiusRollingBall);
+                    }
+            }
+            checkCancelled();
+            // Threshold finding
+            t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+            ip_gs.setAutoThreshold(thresholdMethod, true, ImageProcessor.BLACK_AND_WHITE_LUT);
+            // Binarization
+            threshValue = (int)ip_gs.getMinThreshold();
+            if((cometOptions & COMETFIND_SPLIT)!=0){
+                // Values above the threshold, for splitting merged comets
+                gray = arena.leaseBytes(ip_gs.getWidth()*ip_gs.getHeight(), metrics);
+                leased.add(gray);
+                System.arraycopy((byte[])ip_gs.getPixels(), 0, gray, 0, gray.length);
+                }
+            setThreshold(ip_gs, threshValue);
+            metrics.record(CometMetrics.AUTO_THRESHOLD, t0, a0);
+            cometRois = findParticles(ip_gs);
+            }
+        checkCancelled();
     //----------------------------------------
     // ----- First round of Comet finding ------------
         Vector<Comet> Comets = new Vector<Comet>();
-
-        // Threshold finding
-        ip_gs.setAutoThreshold(thresholdMethod, true, ImageProcessor.BLACK_AND_WHITE_LUT);
-        // Binarization
-        double threshValue = ip_gs.getMinThreshold();
-        setThreshold(ip_gs, (int)threshValue);
-        // Morphology
-        open_ntimes(ip_gs,3,0);
-        // Setup particle analyzer
-        int paopts = ParticleAnalyzer.SHOW_NONE |
-                    ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES |
-                    ParticleAnalyzer.INCLUDE_HOLES;
-        CometParticleAnalyzer pa =
-                new CometParticleAnalyzer(paopts,0,null,400,Double.POSITIVE_INFINITY,0,1);
-        // Run particle finding
-        pa.analyze(img_gs,ip_gs);
-        // Get ROIs
-        Roi[] cometRois = pa.getCometRois();
         IJ.log("Number of ROIs found: "+cometRois.length);
         // Add ROIs as comets
         for(int i=0;i<cometRois.length;i++){
             Comets.add(new Comet(cometRois[i]));
             }
         // Calculate comet parameters
+        t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
         for(int i=0; i<Comets.size(); i++){
-            setCometParams(Comets.get(i),ip_gs2);
+            checkCancelled();
+            setCometParams(Comets.get(i),source);
             }
+        metrics.record(CometMetrics.COMET_PARAMS, t0, a0);
 
         for(int i=0;i<Comets.size();i++){
             Comet comet = Comets.get(i);
             IJ.log(comet.convexity+","+comet.centerlineDiff);
             }
         // Set validity status of each comet based on parameters
-        int validCount = setValidity(Comets,ip_gs2);
+        int validCount = setValidity(Comets,width,height);
+        //---Find more comets-----------------
+        if(gray != null){
+            t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+            validCount = splitMergedComets(Comets, gray, source, threshValue);
+            metrics.record(CometMetrics.SPLIT, t0, a0);
+            checkCancelled();
+            }
+        //------------------------------------
         // If there are no valid comets, stop
         if(validCount==0){
             IJ.log("No valid comets found.");
+            metrics.countComets(Comets.toArray(new Comet[Comets.size()]));
             return null;
             }
 
+        // Set outlier comets based on area statistics
+        setAreaOutliers(Comets, validCount);
 
-        //---Find more comets-----------------
-        /*for(int t = (int)threshValue;t<255;t+=10){
-            IJ.log("Thresh value:"+(int)threshValue+ " t: "+t);
+        // ----- Loop over comets and prepare them for measurement ----------
+        int idxValid = 0;
+        Vector<Comet> measuredComets = new Vector<Comet>();
 
+        for(int i=0; i<Comets.size(); i++){
+            Comet comet = Comets.get(i);
+            // Assign an ID to each comet that isn't INVALID_NO_HEAD
+            if(comet.status != Comet.INVALID_NO_HEAD) {
+                comet.id = idxValid + 1;
+                idxValid++;
+            }
+            
+            // Skip comets that can't calculate stats
+            if (!comet.canCalculateStats()) continue;
 
-            ImageProcessor ipTmp = getGrayscaleCopy(ip,imgOriginalType);
-            ImagePlus imgTmp = new ImagePlus("imgTmp",ipTmp);
+            comet.oldRoi = (Roi)comet.cometRoi.clone();
+            // Make polygon ROI
+            comet.cometRoi = new PolygonRoi(comet.cometRoi.getConvexHull(),
+                                            Roi.POLYGON);
+            measuredComets.add(comet);
+        }
 
-            if((cometOptions & COMETFIND_BGCORRECT)!=0){
-                RankFilters rf = new RankFilters();
-                rf.rank(ipTmp, 10.0, RankFilters.MEDIAN);
-
-                BackgroundSubtracter bSub = new BackgroundSubtracter();
-                double radiusRollingBall = Math.min(ipTmp.getHeight(),ipTmp.getWidth())*0.3;
-                bSub.rollingBallBackground(ipTmp, radiusRollingBall, false,
-                                        false, false, false, true);
-            }
-
-
-            setThreshold(ipTmp,t);
-            ipTmp.invertLut();
-            open_ntimes(ipTmp, 3, 1);
-
-            imgTmp.show();
-
-            int paTmpOpts = ParticleAnalyzer.SHOW_NONE | ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES | ParticleAnalyzer.INCLUDE_HOLES;
-            CometParticleAnalyzer paTmp = new CometParticleAnalyzer(paTmpOpts,0,null,200,Double.POSITIVE_INFINITY,0,1);
-            paTmp.analyze(imgTmp,ipTmp);
-            Roi[] cometRoisTmp = paTmp.getCometRois();
-            IJ.log("Number of ROIs found: "+cometRoisTmp.length);
-
-
-            Vector<Roi> addRois = new Vector<Roi>();
-            Vector<Integer> addRoisIdx = new Vector<Integer>();
-            Vector<Comet> removeComets = new Vector<Comet>();
-            for(int j=0;j<Comets.size();j++){
-                Comet comet = Comets.get(j);
-                if(comet.status==Comet.INVALID_NO_HEAD){
-                    addRoisIdx.clear();
-                    for(int i=0;i<cometRoisTmp.length;i++){
-                        Rectangle br = cometRoisTmp[i].getBounds();
-                        int xc = br.x + br.width/2;
-                        int yc = br.y + br.height/2;
-                        if(comet.cometRoi.contains(xc,yc)){
-                            addRoisIdx.add(i);
+        // ----- Measure comets, in parallel where their regions don't overlap
+        t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+        measureComets(measuredComets, source, cometOptions);
+        metrics.record(CometMetrics.MEASURE, t0, a0);
+
+        // Return comets
+        Comet[] cometsOut = (Comet[])Comets.toArray(new Comet[Comets.size()]);
+        metrics.countComets(cometsOut);
+        return cometsOut;
+    }
+
+    // Median filter and rolling ball background subtraction
+    private void correctGlobalBackground(ByteProcessor ip, double radiusRollingBall){
+        // Tiles are corrected on several threads, each with its own filters
+        CometArena arena = CometArena.get();
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        if(medianEngine == MEDIAN_RANKFILTERS){
+            RankFilters rf = arena.getRankFilters();
+            rf.rank(ip, 10.0, RankFilters.MEDIAN);
+            }
+        else {
+            median(ip, 10.0, arena);
+            }
+        metrics.record(CometMetrics.MEDIAN, t0, a0);
+
+        t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+        BackgroundSubtracter bSub = arena.getBackgroundSubtracter();
+        bSub.rollingBallBackground(ip, radiusRollingBall, false,
+                                false, false, false, true);
+        metrics.record(CometMetrics.ROLLING_BALL, t0, a0);
+        }
+
+    // Background correction read from the preprocessing cache, or computed
+    // and stored there. The median engines give the same result, so they
+    // share entries.
+    private void correctGlobalBackgroundCached(ByteProcessor ip, ByteProcessor template,
+                                               double radiusRollingBall){
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        String params = "background median=10.0 rollingball=" + radiusRollingBall;
+        String key = preprocessCache.key(ip, params);
+        boolean hit = preprocessCache.get(key, ip);
+        metrics.countReuse(CometMetrics.PREPROCESS_CACHE, 1, hit ? 1 : 0);
+        metrics.record(CometMetrics.PREPROCESS_CACHE, t0, a0);
+        if(hit) return;
+        // A failed read may have left part of an entry in ip
+        System.arraycopy((byte[])template.getPixels(), 0, (byte[])ip.getPixels(), 0,
+                         ip.getWidth()*ip.getHeight());
+        correctGlobalBackground(ip, radiusRollingBall);
+        t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+        preprocessCache.put(key, ip);
+        metrics.record(CometMetrics.PREPROCESS_CACHE, t0, a0);
+        }
+
+    // Median filter of a whole image, equal to RankFilters.MEDIAN. The
+    // source rows are read from a leased copy while the bands of rows
+    // are written back in parallel.
+    private void median(ByteProcessor ip, double radius, CometArena arena){
+        final int width = ip.getWidth(), height = ip.getHeight();
+        final byte[] pixels = (byte[])ip.getPixels();
+        final byte[] source = arena.leaseBytes(width*height, metrics);
+        try {
+            System.arraycopy(pixels, 0, source, 0, width*height);
+            final int[] lineRadii = MedianKernels.lineRadii(radius);
+            final int nBands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                                                    height/MEDIAN_MIN_BAND));
+            runParallel(nBands, new IndexedTask(){
+                public void run(int band){
+                    MedianKernels.median(source, pixels, width, height, lineRadii,
+                                         band*height/nBands, (band + 1)*height/nBands);
+                    }
+                });
+            }
+        finally {
+            arena.release(source);
+            }
+        }
+
+    // Comet outlines in a binarized image, in the order the particle
+    // analyzer scans them
+    private Roi[] findParticles(ByteProcessor ip){
+        // Morphology
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        open_ntimes(ip,3,0);
+        metrics.record(CometMetrics.OPEN, t0, a0);
+        // Setup particle analyzer
+        int paopts = ParticleAnalyzer.SHOW_NONE |
+                    ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES |
+                    ParticleAnalyzer.INCLUDE_HOLES;
+        CometParticleAnalyzer pa =
+                new CometParticleAnalyzer(paopts,0,null,COMET_MIN_AREA,Double.POSITIVE_INFINITY,0,1);
+        // Run particle finding
+        t0 = System.nanoTime(); a0 = CometMetrics.allocatedBytes();
+        pa.analyze(new ImagePlus("tmpimg",ip),ip);
+        Roi[] rois = pa.getCometRois();
+        metrics.record(CometMetrics.PARTICLES, t0, a0);
+        return rois;
+        }
+
+    // ----- Stages of the comet search for CometPreview. Each returns a new
+    // image or array, so the preview can keep every stage and redo only
+    // those after a changed setting.
+
+    // The 8-bit image that is searched and measured
+    ByteProcessor previewGrayscale(ImagePlus img){
+        // The buffer stays with the preview instead of going back to the arena
+        ArrayList<byte[]> kept = new ArrayList<byte[]>();
+        return getGrayscale(img.getProcessor(), img.getType(), CometArena.get(), kept);
+        }
+
+    // Background corrected copy of the grayscale image
+    ByteProcessor previewBackground(ByteProcessor gray){
+        ByteProcessor ip = (ByteProcessor)gray.duplicate();
+        double radiusRollingBall = Math.min(ip.getHeight(),ip.getWidth())*0.3;
+        if(preprocessCache == null){
+            correctGlobalBackground(ip, radiusRollingBall);
+            }
+        else {
+            correctGlobalBackgroundCached(ip, gray, radiusRollingBall);
+            }
+        return ip;
+        }
+
+    // Threshold of the search in ip, which is left unchanged
+    int previewThreshold(ByteProcessor ip){
+        ip.setAutoThreshold(thresholdMethod, true, ImageProcessor.BLACK_AND_WHITE_LUT);
+        int threshValue = (int)ip.getMinThreshold();
+        ip.resetThreshold();
+        return threshValue;
+        }
+
+    // Binarized copy of ip
+    ByteProcessor previewMask(ByteProcessor ip, int threshValue){
+        ByteProcessor mask = (ByteProcessor)ip.duplicate();
+        setThreshold(mask, threshValue);
+        return mask;
+        }
+
+    // Comet outlines of a binarized image, which is left unchanged
+    Roi[] previewRois(ByteProcessor mask, int threshValue){
+        ByteProcessor ip = (ByteProcessor)mask.duplicate();
+        ip.setThreshold(threshValue, 255, ImageProcessor.BLACK_AND_WHITE_LUT);
+        return findParticles(ip);
+        }
+
+    // Comets of the outlines with the status a run gives them: the shape
+    // checks and the area outliers. Blobs of touching comets are split in
+    // the corrected image when split is set.
+    Comet[] previewComets(Roi[] rois, ByteProcessor gray, ByteProcessor corrected,
+                          int threshValue, boolean split){
+        CometTileSource source = new ImageTiles(gray, ImagePlus.GRAY8);
+        Vector<Comet> comets = new Vector<Comet>();
+        for(Roi roi : rois){
+            Comet comet = new Comet(roi);
+            setCometParams(comet, source);
+            comets.add(comet);
+            }
+        int validCount = setValidity(comets, gray.getWidth(), gray.getHeight());
+        if(split){
+            validCount = splitMergedComets(comets, (byte[])corrected.getPixels(), source,
+                                           threshValue);
+            }
+        if(validCount > 0){
+            setAreaOutliers(comets, validCount);
+            }
+        return comets.toArray(new Comet[comets.size()]);
+        }
+
+    // Blobs rejected for their shape may be touching comets that merged at
+    // the threshold. The component of each is followed up the max-tree of
+    // the thresholded values to the lowest level at which it splits into
+    // two or more parts of comet size. The parts are traced as comets, and
+    // replace the blob when at least two of them are valid. The tree is
+    // built once, only when there are blobs to split. Returns the number
+    // of valid comets.
+    private int splitMergedComets(Vector<Comet> comets, byte[] gray, CometTileSource source,
+                                  int threshValue){
+        int width = source.getWidth(), height = source.getHeight();
+        CometMaxTree tree = null;
+        for(int i=0; i<comets.size(); i++){
+            Comet comet = comets.get(i);
+            if(comet.status == Comet.VALID || comet.status == Comet.OUTLIER) continue;
+            checkCancelled();
+            if(isOnEdge(width, height, comet.cometRoi)) continue;
+            if(tree == null) tree = new CometMaxTree(gray, width, height, threshValue);
+
+            // Brightest pixel of the blob, which lies in its component
+            Rectangle br = comet.cometRoi.getBounds();
+            ImageProcessor blobMask = comet.cometRoi.getMask();
+            int seed = -1;
+            for(int y=0; y<br.height; y++){
+                for(int x=0; x<br.width; x++){
+                    int p = (br.y + y)*width + br.x + x;
+                    if((blobMask == null || blobMask.get(x, y) != 0) &&
+                       (seed < 0 || (gray[p] & 0xff) > (gray[seed] & 0xff))) seed = p;
+                    }
+                }
+            if(seed < 0) continue;
+            int node = tree.nodeAt(seed, threshValue);
+            if(node < 0) continue;
+
+            // Climb while the component keeps a single part of comet size
+            int nParts;
+            while(true){
+                nParts = 0;
+                int part = -1;
+                for(int c=tree.firstChild(node); c>=0; c=tree.nextSibling(c)){
+                    if(tree.area(c) >= COMET_MIN_AREA){
+                        nParts++;
+                        part = c;
                         }
                     }
-                    if(addRoisIdx.size()>=2){
-                        removeComets.add(comet);
-                        for(int k=0;k<addRoisIdx.size();k++){
-                            addRois.add(cometRoisTmp[addRoisIdx.get(k)]);
+                if(nParts != 1) break;
+                node = part;
+                }
+            if(nParts < 2) continue;
+
+            // Trace each part as findParticles traces the thresholded image
+            Rectangle window = new Rectangle(br.x - SPLIT_MARGIN, br.y - SPLIT_MARGIN,
+                                             br.width + 2*SPLIT_MARGIN, br.height + 2*SPLIT_MARGIN)
+                               .intersection(new Rectangle(0, 0, width, height));
+            Vector<Comet> parts = new Vector<Comet>();
+            for(int c=tree.firstChild(node); c>=0; c=tree.nextSibling(c)){
+                if(tree.area(c) < COMET_MIN_AREA) continue;
+                ByteProcessor mask = new ByteProcessor(window.width, window.height);
+                byte[] maskPixels = (byte[])mask.getPixels();
+                for(int y=0; y<window.height; y++){
+                    for(int x=0; x<window.width; x++){
+                        int p = (window.y + y)*width + window.x + x;
+                        if(tree.contains(c, p)) maskPixels[y*window.width + x] = (byte)255;
+                        }
+                    }
+                mask.setThreshold(255, 255, ImageProcessor.BLACK_AND_WHITE_LUT);
+                for(Roi roi : findParticles(mask)){
+                    Rectangle rbr = roi.getBounds();
+                    roi.setLocation(rbr.x + window.x, rbr.y + window.y);
+                    double[] centroid = roi.getContourCentroid();
+                    if(comet.cometRoi.contains((int)centroid[0], (int)centroid[1])){
+                        Comet newComet = new Comet(roi);
+                        setCometParams(newComet, source);
+                        parts.add(newComet);
                         }
                     }
                 }
+            if(setValidity(parts, width, height) < 2) continue;
+            IJ.log("Blob " + i + " split into " + parts.size() + " comets at threshold " +
+                   (tree.level(node) + 1));
+            comets.remove(i);
+            comets.addAll(i, parts);
+            i += parts.size() - 1;
             }
-            for(int i=0;i<removeComets.size();i++){
-                Comets.remove(removeComets.get(i));
-            }
-            for(int i=0;i<addRois.size();i++){
-                Comet newComet = new Comet(addRois.get(i));
-                setCometParams(newComet,ip_gs2);
-                newComet.status = Comet.VALID;
-                Comets.add(newComet);
-            }
-            setValidity(Comets,ip_gs2);
-        }*/
-        //------------------------------------
 
-        // --- Area and height statistics
-        double meanArea = 0, stdArea = 0;
-        double meanHeight = 0, stdHeight = 0;
-        for(int i=0; i<Comets.size(); i++){
-            Comet comet = Comets.get(i);
-            if(comet.status == Comet.VALID){
-                meanHeight += comet.height;
-                meanArea += comet.area;
-                }
+        int validCount = 0;
+        for(Comet comet : comets){
+            if(comet.status == Comet.VALID) validCount++;
             }
-        meanArea /= validCount;
-        meanHeight /= validCount;
+        return validCount;
+        }
 
-        for(int i=0; i<Comets.size(); i++){
-            Comet comet = Comets.get(i);
-            if(comet.status == Comet.VALID){
-                stdArea += Math.pow(comet.area - meanArea,2) / validCount;
-                stdHeight += Math.pow(comet.height - meanHeight,2) / validCount;
+    // Comet outlines of a large image found tile by tile. Every tile is read
+    // with a halo around it, so the comets near its border are seen whole,
+    // and a comet is kept only by the tile that contains its centroid. The
+    // threshold is computed once from the histogram of all tiles, which
+    // makes the outlines the same as those of a whole-image search when
+    // the background is not corrected. Background correction runs on each
+    // tile with the radius of the whole image, so it is close but not equal.
+    // Tiles are read from the source as they are searched, so only the
+    // tiles being worked on are held.
+    private Roi[] findCometRoisTiled(final CometTileSource source, final int cometOptions){
+        final int width = source.getWidth(), height = source.getHeight();
+        final boolean bgcorrect = (cometOptions & COMETFIND_BGCORRECT)!=0;
+        final double radiusRollingBall = Math.min(height,width)*0.3;
+        final Rectangle bounds = new Rectangle(0, 0, width, height);
+        Vector<Rectangle> cores = new Vector<Rectangle>();
+        for(int y=0; y<height; y+=tileSize){
+            for(int x=0; x<width; x+=tileSize){
+                cores.add(new Rectangle(x, y, Math.min(tileSize, width - x),
+                                        Math.min(tileSize, height - y)));
                 }
             }
-        stdArea = Math.sqrt(stdArea);
-        stdHeight = Math.sqrt(stdHeight);
-        // ---------------------------
+        final int nTiles = cores.size();
+        final Rectangle[] regions = new Rectangle[nTiles];
+        for(int i=0; i<nTiles; i++){
+            Rectangle core = cores.get(i);
+            regions[i] = new Rectangle(core.x - tileHalo, core.y - tileHalo,
+                            core.width + 2*tileHalo, core.height + 2*tileHalo).intersection(bounds);
+            }
 
-        // Set outlier comets based on statistics
-        for(int i=0; i<Comets.size(); i++){
-            Comet comet = Comets.get(i);
-            if(comet.status == Comet.VALID){
-                IJ.log("Mean height: " + meanHeight + ", std: " + stdHeight +
-                       "this height: " + comet.height);
-                /*if(comet.height > meanHeight + 2*stdHeight){
-                    comet.status = Comet.INVALID;
-                    IJ.log(i+" too high invalid");
+        // Histogram of every core; corrected tiles are kept for the second pass
+        final CometTile[] tiles = new CometTile[nTiles];
+        final int[][] histograms = new int[nTiles][];
+        runParallel(nTiles, new IndexedTask(){
+            public void run(int i){
+                checkCancelled();
+                Rectangle core = cores.get(i);
+                if(!bgcorrect){
+                    histograms[i] = source.getTile(core).getHistogram();
+                    return;
                     }
-                if(comet.height < meanHeight - 2*stdHeight){
-                    comet.status = Comet.INVALID;
-                    IJ.log(i+" height too small invalid");
-                    }*/
-                if(Math.abs(comet.area - meanArea) > 2*stdArea){
-                    if(comet.status == Comet.VALID)
-                        comet.status = Comet.OUTLIER;
-                    IJ.log(i + " Suspected outlier based on area");
+                CometTile tile = new CometTile(source, regions[i]);
+                correctGlobalBackground(tile.ip, radiusRollingBall);
+                tile.ip.setRoi(core.x - regions[i].x, core.y - regions[i].y,
+                               core.width, core.height);
+                histograms[i] = tile.ip.getHistogram();
+                tile.ip.resetRoi();
+                tiles[i] = tile;
+                }
+            });
+
+        // Threshold finding
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        int[] histogram = new int[256];
+        for(int i=0; i<nTiles; i++){
+            for(int v=0; v<256; v++) histogram[v] += histograms[i][v];
+            }
+        AutoThresholder.Method method;
+        try {
+            method = AutoThresholder.Method.valueOf(thresholdMethod);
+            }
+        catch(IllegalArgumentException ex){
+            method = AutoThresholder.Method.Default;
+            }
+        // Same value as the lower threshold set by setAutoThreshold
+        final int threshValue = new AutoThresholder().getThreshold(method, histogram);
+        metrics.record(CometMetrics.AUTO_THRESHOLD, t0, a0);
+
+        // Binarize and search each tile, keeping the comets centered in its core
+        final Vector<Vector<Roi>> found = new Vector<Vector<Roi>>();
+        for(int i=0; i<nTiles; i++) found.add(new Vector<Roi>());
+        runParallel(nTiles, new IndexedTask(){
+            public void run(int i){
+                checkCancelled();
+                Rectangle core = cores.get(i);
+                Rectangle region = regions[i];
+                CometTile tile = (tiles[i] != null) ? tiles[i] : new CometTile(source, region);
+                tiles[i] = null;
+                // Threshold levels as setAutoThreshold leaves them, for the particle analyzer
+                tile.ip.setThreshold(threshValue, 255, ImageProcessor.BLACK_AND_WHITE_LUT);
+                setThreshold(tile.ip, threshValue);
+                for(Roi roi : findParticles(tile.ip)){
+                    Rectangle br = roi.getBounds();
+                    roi.setLocation(br.x + region.x, br.y + region.y);
+                    double[] centroid = roi.getContourCentroid();
+                    if(core.contains((int)Math.floor(centroid[0]), (int)Math.floor(centroid[1]))){
+                        found.get(i).add(roi);
+                        }
                     }
                 }
+            });
+
+        // Put the comets of all tiles in the raster order of their first pixel
+        Vector<Roi> rois = new Vector<Roi>();
+        for(Vector<Roi> tileRois : found) rois.addAll(tileRois);
+        final long[] order = new long[rois.size()];
+        for(int i=0; i<order.length; i++){
+            Roi roi = rois.get(i);
+            Rectangle br = roi.getBounds();
+            int first = 0;
+            ImageProcessor mask = roi.getMask();
+            if(mask != null){
+                while(first < br.width && mask.get(first, 0) == 0) first++;
+                }
+            order[i] = ((long)br.y*width + br.x + first) << 24 | i;
+            }
+        Arrays.sort(order);
+        Roi[] sorted = new Roi[order.length];
+        for(int i=0; i<order.length; i++){
+            sorted[i] = rois.get((int)(order[i] & 0xffffff));
             }
-        // -----------------
+        return sorted;
+        }
 
-        // ----- Loop over comets and analyze one-by-one ----------
-        int idxValid = 0;
+    private interface IndexedTask {
+        void run(int index);
+        }
 
-        for(int i=0; i<Comets.size(); i++){
-            Comet comet = Comets.get(i);
-            // Assign an ID to each comet that isn't INVALID_NO_HEAD
-            if(comet.status != Comet.INVALID_NO_HEAD) {
-                comet.id = idxValid + 1;
-                idxValid++;
+    // Run tasks 0 to n-1 on the measure executor and wait for all of them
+    private void runParallel(int n, final IndexedTask task){
+        CompletableFuture<?>[] done = new CompletableFuture<?>[n];
+        for(int i=0; i<n; i++){
+            final int index = i;
+            done[i] = CompletableFuture.runAsync(new Runnable(){
+                public void run(){
+                    task.run(index);
+                    }
+                }, measureExecutor);
             }
-            
-            // Skip comets that can't calculate stats
-            if (!comet.canCalculateStats()) continue;
+        try {
+            CompletableFuture.allOf(done).join();
+            }
+        catch(CompletionException ex){
+            if(ex.getCause() instanceof RuntimeException){
+                throw (RuntimeException)ex.getCause();
+                }
+            throw ex;
+            }
+        }
 
-            IJ.log("-----------------");
-            IJ.log("ID: "+ comet.id);
-            IJ.log(comet.cometRoi.getType()+" type");
+    // Each comet is measured on its own tile, a copy of the pixels around the
+    // comet read from the source, so the ROI state of one comet never
+    // affects another. Measuring subtracts the background in the tile. A
+    // comet waits for every earlier comet whose tile overlaps its own and
+    // takes the overlap from their tiles, in order, so it sees the pixels
+    // a serial run over one image would. Only tiles that a later comet
+    // reads are kept.
+    private void measureComets(Vector<Comet> comets, final CometTileSource source,
+                               int cometOptions){
+        int nComets = comets.size();
+        Rectangle[] regions = new Rectangle[nComets];
+        for(int j=0; j<nComets; j++){
+            regions[j] = getMeasureRegion(source, comets.get(j).cometRoi);
+            }
+        // Earlier comets whose tiles overlap each comet's tile
+        int[][] overlaps = new int[nComets][];
+        final boolean[] keep = new boolean[nComets];
+        int[] found = new int[nComets];
+        for(int j=0; j<nComets; j++){
+            int n = 0;
+            for(int i=0; i<j; i++){
+                if(regions[i].intersects(regions[j])){
+                    found[n++] = i;
+                    keep[i] = true;
+                    }
+                }
+            overlaps[j] = Arrays.copyOf(found, n);
+            }
 
-            comet.oldRoi = (Roi)comet.cometRoi.clone();
-            // Make polygon ROI
-            comet.cometRoi = new PolygonRoi(comet.cometRoi.getConvexHull(),
-                                            Roi.POLYGON);
-            // Calculate parameters of polygon
-            setCometParams(comet, ip_gs2);
-
-            // Find head
-            setupHead(ip_gs2,comet,cometOptions);
-
-            // Background correction
-            correctBackground(ip_gs2, comet);
-        // -----------------------
-
-        // --- Measure comets in grayscale image
-            // Calculate comet parameters again
-            setCometParams(comet, ip_gs2);
-
-            // Comet properties
-            comet.cometArea = comet.area;
-            comet.cometIntensity = comet.mean;
-            comet.cometLength = comet.width;
-            comet.cometDNA = comet.area*comet.mean;
-
-            // Head properties
-            ip_gs2.setRoi(comet.headRoi);
-            ImageStatistics headStats = ImageStatistics.getStatistics(ip_gs2, ij.measure.Measurements.ALL_STATS, null);
-            comet.headArea = headStats.area;
-            comet.headIntensity = headStats.mean;
-            comet.headLength = headStats.roiWidth;
-            comet.headDNA = comet.headArea*comet.headIntensity;
-            comet.headDNAPercent = ((100*comet.headDNA)/comet.cometDNA);
-            comet.headCentroid = getXIntensityCentroid(ip_gs2);
-
-            // Tail properties
-            comet.tailArea = comet.cometArea - comet.headArea;
-            comet.tailLength = Math.max(comet.cometLength - comet.headLength,0);
-            comet.tailDNA = comet.cometDNA - comet.headDNA;
-            comet.tailIntensity =
-                (comet.tailArea > 0) ? (comet.tailDNA / comet.tailArea) : 0;
-            comet.tailDNApercent =
-                comet.tailDNA / comet.cometDNA; // Multiply by 100 later
-            comet.tailMoment = comet.tailLength * comet.tailDNApercent;
-            Roi roiTail =
-                (new ShapeRoi(comet.cometRoi)).not(new ShapeRoi(comet.headRoi));
-            Rectangle tailBoundRect = roiTail.getBounds();
-            if(tailBoundRect.width * tailBoundRect.height ==0){
-                comet.tailCentroid = comet.headCentroid;
+        final CometTile[] kept = new CometTile[nComets];
+        CompletableFuture<?>[] measured = new CompletableFuture<?>[nComets];
+        Vector<CompletableFuture<?>> deps = new Vector<CompletableFuture<?>>();
+        for(int j=0; j<nComets; j++){
+            final int index = j;
+            final Comet comet = comets.get(j);
+            final Rectangle region = regions[j];
+            final int[] earlier = overlaps[j];
+            deps.clear();
+            for(int i : earlier){
+                deps.add(measured[i]);
+                }
+            Runnable task = new Runnable(){
+                public void run(){
+                    checkCancelled();
+                    long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                    CometTile tile = new CometTile(source, region);
+                    for(int i : earlier){
+                        tile.copyFrom(kept[i]);
+                        }
+                    tile.toTile(comet);
+                    measureComet(comet, tile.ip, cometOptions);
+                    tile.toImage(comet);
+                    if(keep[index]) kept[index] = tile;
+                    metrics.record(CometMetrics.MEASURE_COMET, t0, a0);
+                    }
+                };
+            if(deps.isEmpty()){
+                measured[j] = CompletableFuture.runAsync(task, measureExecutor);
                 }
             else {
-                ip_gs2.setRoi(roiTail);
-                comet.tailCentroid  = getXIntensityCentroid(ip_gs2);
+                CompletableFuture<?>[] depArray = deps.toArray(new CompletableFuture<?>[deps.size()]);
+                measured[j] = CompletableFuture.allOf(depArray).thenRunAsync(task, measureExecutor);
                 }
+            }
 
-            comet.tailOliveMoment = comet.tailDNApercent *
-                Math.abs(comet.tailCentroid - comet.headCentroid);
-            comet.tailDNApercent *= 100;
-        //-------------
+        try {
+            CompletableFuture.allOf(measured).join();
+            }
+        catch(CompletionException ex){
+            if(ex.getCause() instanceof RuntimeException){
+                throw (RuntimeException)ex.getCause();
+                }
+            throw ex;
+            }
         }
 
-        // Close original image
-        img_orig.changes = false;
-        img_orig.close();
+    // Pixels read or written while measuring a comet: its bounding box, the
+    // profile band used by getHeadEdge and the background strip. This is the
+    // extent of the comet's tile.
+    private Rectangle getMeasureRegion(CometTileSource source, Roi cometRoi){
+        Rectangle br = cometRoi.getBounds();
+        int bgHeight = (int)Math.max(br.height/5.0, 10);
+        Rectangle region = new Rectangle(br.x - 1, br.y - 6, br.width + 2, br.height + 12);
+        if ((br.y - bgHeight) >= 0) {
+            region.add(new Rectangle(br.x, br.y - bgHeight, br.width, bgHeight));
+            }
+        else {
+            region.add(new Rectangle(br.x, br.y + br.height, br.width, bgHeight));
+            }
+        return region.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        }
 
-        // Return comets
-        return (Comet[])Comets.toArray(new Comet[Comets.size()]);
+    private void measureComet(Comet comet, ImageProcessor ip, int cometOptions){
+        IJ.log("-----------------");
+        IJ.log("ID: "+ comet.id);
+        IJ.log(comet.cometRoi.getType()+" type");
+
+        // Calculate parameters of polygon
+        setCometParams(comet, ip);
+
+        // Find head
+        setupHead(ip,comet,cometOptions);
+
+        // Background correction
+        correctBackground(ip, comet);
+    // -----------------------
+
+    // --- Measure comets in grayscale image
+        // Calculate comet parameters again
+        setCometParams(comet, ip);
+
+        // Comet properties
+        comet.cometArea = comet.area;
+        comet.cometIntensity = comet.mean;
+        comet.cometLength = comet.width;
+        comet.cometDNA = comet.area*comet.mean;
+
+        // Head properties
+        ip.setRoi(comet.headRoi);
+        ImageStatistics headStats = ImageStatistics.getStatistics(ip, ij.measure.Measurements.ALL_STATS, null);
+        comet.headArea = headStats.area;
+        comet.headIntensity = headStats.mean;
+        comet.headLength = headStats.roiWidth;
+        comet.headDNA = comet.headArea*comet.headIntensity;
+        comet.headDNAPercent = ((100*comet.headDNA)/comet.cometDNA);
+        comet.headCentroid = getXIntensityCentroid(ip);
+
+        // Tail properties
+        comet.tailArea = comet.cometArea - comet.headArea;
+        comet.tailLength = Math.max(comet.cometLength - comet.headLength,0);
+        comet.tailDNA = comet.cometDNA - comet.headDNA;
+        comet.tailIntensity =
+            (comet.tailArea > 0) ? (comet.tailDNA / comet.tailArea) : 0;
+        comet.tailDNApercent =
+            comet.tailDNA / comet.cometDNA; // Multiply by 100 later
+        comet.tailMoment = comet.tailLength * comet.tailDNApercent;
+        Roi roiTail =
+            (new ShapeRoi(comet.cometRoi)).not(new ShapeRoi(comet.headRoi));
+        Rectangle tailBoundRect = roiTail.getBounds();
+        if(tailBoundRect.width * tailBoundRect.height ==0){
+            comet.tailCentroid = comet.headCentroid;
+            }
+        else {
+            ip.setRoi(roiTail);
+            comet.tailCentroid  = getXIntensityCentroid(ip);
+            }
+
+        comet.tailOliveMoment = comet.tailDNApercent *
+            Math.abs(comet.tailCentroid - comet.headCentroid);
+        comet.tailDNApercent *= 100;
     }
 
     private void correctBackground(ImageProcessor ip, Comet comet){
@@ -348,8 +891,9 @@ public class CometAnalyzer {
 
     private void setupHead(ImageProcessor ip,Comet comet,int cometOptions){
         // --- Crop the grayscale comet from the original image
-            // Make a grayscale copy of the original image
-            ByteProcessor ipComet = (ByteProcessor)ip.duplicate();
+            // Make a grayscale copy of the comet's bounding box; ip is
+            // already the comet's tile, so this copy is small
+            ByteProcessor ipComet;
             // TODO: change this
             //int img_orig_type = 4;
             // Grayscale
@@ -362,9 +906,9 @@ public class CometAnalyzer {
                 }*/
 
             // Set the comet as ROI
-            ipComet.setRoi(comet.cometRoi);
+            ip.setRoi(comet.cometRoi);
             // Crop the comet from the image
-            ipComet = (ByteProcessor)(ipComet.crop());
+            ipComet = (ByteProcessor)(ip.crop());
         // -------------------------------------------
 
         // ---- Head finding --------------------------------
@@ -465,6 +1009,17 @@ public class CometAnalyzer {
 
     }
 
+    // Comet parameters measured on a copy of the comet's bounds, so the
+    // image is never given a ROI and need not be held whole
+    private void setCometParams(Comet comet, CometTileSource source){
+        Rectangle br = comet.cometRoi.getBounds()
+                       .intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        CometTile tile = new CometTile(source, br);
+        tile.toTile(comet);
+        setCometParams(comet, tile.ip);
+        tile.paramsToImage(comet);
+    }
+
     private void setCometParams(Comet comet, ImageProcessor ip){
         ip.setRoi(comet.cometRoi);
         ImageStatistics stats = ImageStatistics.getStatistics(ip, ij.measure.Measurements.ALL_STATS, null);
@@ -517,7 +1072,7 @@ public class CometAnalyzer {
         return new Rectangle(minX,minY,maxX-minX,maxY-minY);
         }
 
-    private void subtractBackground(ImageProcessor ip, Roi r, double[] bgAvg){
+    void subtractBackground(ImageProcessor ip, Roi r, double[] bgAvg){
         Rectangle boundRect = r.getBounds();
         ip.setRoi(r);
         ImageProcessor maskp = ip.getMask();
@@ -535,8 +1090,14 @@ public class CometAnalyzer {
             }
         }
 
-    private double[] getColumnAvg(ImageProcessor ip, Roi roi, Rectangle boundRect){
+    double[] getColumnAvg(ImageProcessor ip, Roi roi, Rectangle boundRect){
         double[] colAvg = new double[boundRect.width];
+        getColumnAvg(ip, roi, boundRect, colAvg);
+        return colAvg;
+        }
+
+    // Column averages written to the first boundRect.width entries of colAvg
+    void getColumnAvg(ImageProcessor ip, Roi roi, Rectangle boundRect, double[] colAvg){
         ip.resetRoi();
         ip.setRoi(roi);
         ImageProcessor maskp = ip.getMask();
@@ -563,8 +1124,7 @@ public class CometAnalyzer {
                 colAvg[i] /= boundRect.height;
             }
         IJ.log("Col average: ");
-        printArray(colAvg);
-        return colAvg;
+        printArray(colAvg, boundRect.width);
         }
 
     private double[] getSmoothColumnAvg(ImageProcessor ip, Roi r, Rectangle boundRect){
@@ -586,11 +1146,24 @@ public class CometAnalyzer {
         return colAvgSmooth;
         }
 
-    private void setThreshold(ImageProcessor ip, int minInt){
+    void setThreshold(ImageProcessor ip, int minInt){
         Rectangle roi = ip.getRoi();
         Rectangle br = roi.getBounds();
-        double pix;
 
+        // 8-bit images without a calibration table are binarized on the pixel array
+        if(ip instanceof ByteProcessor && ip.getCalibrationTable() == null){
+            byte[] pixels = (byte[])ip.getPixels();
+            if(br.width*br.height >= LUT_THRESHOLD_MIN_PIXELS){
+                ThresholdKernels.applyLut(pixels, ip.getWidth(), br,
+                                          ThresholdKernels.thresholdLut(minInt));
+                }
+            else {
+                ThresholdKernels.threshold(pixels, ip.getWidth(), br, minInt);
+                }
+            return;
+            }
+
+        double pix;
         for(int y=br.y; y<(br.y+br.height); y++){
             for(int x=br.x; x<(br.x+br.width); x++){
                 pix = ip.getPixelValue(x,y);
@@ -636,7 +1209,7 @@ public class CometAnalyzer {
 
     }*/
 
-    private int setValidity(Vector<Comet> Comets, ImageProcessor ip){
+    private int setValidity(Vector<Comet> Comets, int width, int height){
         int validCount = 0;
         for(int i=0;i<Comets.size();i++){
             Comet comet = Comets.get(i);
@@ -657,7 +1230,7 @@ public class CometAnalyzer {
                 IJ.log(i+" hratio invalid");
                 }
             // Comet shouldn't be on border
-            if(isOnEdge(ip,comet.cometRoi)){
+            if(isOnEdge(width,height,comet.cometRoi)){
                 comet.status = Comet.INVALID_SIZE;
                 IJ.log(i+" is on edge invalid");
                 }
@@ -674,7 +1247,58 @@ public class CometAnalyzer {
         return validCount;
     }
 
-    private boolean isOnEdge(ImageProcessor ip, Roi r){
+    // Mark valid comets whose area is more than two standard deviations
+    // from the mean of the valid comets as outliers. A run and the preview
+    // both apply it after the shape checks.
+    private void setAreaOutliers(Vector<Comet> Comets, int validCount){
+        // --- Area and height statistics
+        double meanArea = 0, stdArea = 0;
+        double meanHeight = 0, stdHeight = 0;
+        for(int i=0; i<Comets.size(); i++){
+            Comet comet = Comets.get(i);
+            if(comet.status == Comet.VALID){
+                meanHeight += comet.height;
+                meanArea += comet.area;
+                }
+            }
+        meanArea /= validCount;
+        meanHeight /= validCount;
+
+        for(int i=0; i<Comets.size(); i++){
+            Comet comet = Comets.get(i);
+            if(comet.status == Comet.VALID){
+                stdArea += Math.pow(comet.area - meanArea,2) / validCount;
+                stdHeight += Math.pow(comet.height - meanHeight,2) / validCount;
+                }
+            }
+        stdArea = Math.sqrt(stdArea);
+        stdHeight = Math.sqrt(stdHeight);
+        // ---------------------------
+
+        // Set outlier comets based on statistics
+        for(int i=0; i<Comets.size(); i++){
+            Comet comet = Comets.get(i);
+            if(comet.status == Comet.VALID){
+                IJ.log("Mean height: " + meanHeight + ", std: " + stdHeight +
+                       "this height: " + comet.height);
+                /*if(comet.height > meanHeight + 2*stdHeight){
+                    comet.status = Comet.INVALID;
+                    IJ.log(i+" too high invalid");
+                    }
+                if(comet.height < meanHeight - 2*stdHeight){
+                    comet.status = Comet.INVALID;
+                    IJ.log(i+" height too small invalid");
+                    }*/
+                if(Math.abs(comet.area - meanArea) > 2*stdArea){
+                    if(comet.status == Comet.VALID)
+                        comet.status = Comet.OUTLIER;
+                    IJ.log(i + " Suspected outlier based on area");
+                    }
+                }
+            }
+    }
+
+    private boolean isOnEdge(int width, int height, Roi r){
         Rectangle br = r.getBounds();
 
         if(br.x <= 1){
@@ -683,10 +1307,10 @@ public class CometAnalyzer {
         if(br.y <= 1){
             return true;
             }
-        if((br.x + br.width) >= (ip.getWidth()-1)){
+        if((br.x + br.width) >= (width-1)){
             return true;
             }
-        if((br.y + br.height) >= (ip.getHeight()-1)){
+        if((br.y + br.height) >= (height-1)){
             return true;
             }
         return false;
@@ -746,7 +1370,7 @@ public class CometAnalyzer {
         // }
 
 
-    private int getXIntensityCentroid(ImageProcessor ip){
+    int getXIntensityCentroid(ImageProcessor ip){
         Rectangle roi = ip.getRoi();
         byte[] mask = ip.getMaskArray();
         Rectangle br = roi.getBounds();
@@ -771,7 +1395,7 @@ public class CometAnalyzer {
         }
 
 
-    private int getFrontCentroid(ImageProcessor ip){
+    int getFrontCentroid(ImageProcessor ip){
         double yFrontCentroid = 0.0;
         int cnt = 0;
         Rectangle roi = ip.getRoi();
@@ -792,7 +1416,7 @@ public class CometAnalyzer {
         return (int)yFrontCentroid;
         }
 
-    private double ySymmetry(ImageProcessor ip){
+    double ySymmetry(ImageProcessor ip){
         //int counter = 0;
         Rectangle roi = ip.getRoi();
         byte[] mask = ip.getMaskArray();
@@ -883,16 +1507,16 @@ public class CometAnalyzer {
         return height;
         }
 
-    private void printArray(double[] arr){
+    private void printArray(double[] arr, int len){
         String s = "";
-        for(int i=0;i<arr.length;i++){
+        for(int i=0;i<len;i++){
             s += arr[i];
-            if(i<arr.length-1) s+=",";
+            if(i<len-1) s+=",";
             }
         IJ.log(s);
         }
 
-    private void open_ntimes(ImageProcessor ip, int n, int dark){
+    void open_ntimes(ImageProcessor ip, int n, int dark){
         if(dark==0){
             for(int i=0;i<n;i++){
                 ip.dilate();
@@ -912,7 +1536,7 @@ public class CometAnalyzer {
             }
         }
 
-    private int getHeadEdge(ImageProcessor ip, Comet comet){
+    int getHeadEdge(ImageProcessor ip, Comet comet){
         ip.setRoi(comet.cometRoi);
         Rectangle boundRect = comet.cometRoi.getBounds();
 
@@ -925,29 +1549,37 @@ public class CometAnalyzer {
             profileRect = new Rectangle(boundRect);
         }
 
-        double[] cometProfile = getColumnAvg(ip, comet.cometRoi, profileRect);
+        // The profiles live in scratch arrays of this thread's arena; each
+        // step reads one array and writes another
+        CometArena arena = CometArena.get();
+        int nCol = profileRect.width;
+        double[] cometProfile = arena.scratch(CometArena.SCRATCH_PROFILE, nCol, metrics);
+        getColumnAvg(ip, comet.cometRoi, profileRect, cometProfile);
 
-        printArray(cometProfile);
+        printArray(cometProfile, nCol);
 
         int kernelWidth = (int)boundRect.width/10;
-        double[] smoothKernel = new double[kernelWidth];
-        Arrays.fill(smoothKernel, 1.0/kernelWidth);
+        double[] smoothKernel = arena.scratch(CometArena.SCRATCH_KERNEL, kernelWidth, metrics);
+        Arrays.fill(smoothKernel, 0, kernelWidth, 1.0/kernelWidth);
         double[] diffKernel = {-1.0,1.0};
+        double[] smoothed = arena.scratch(CometArena.SCRATCH_SMOOTH, nCol, metrics);
+        double[] diff = arena.scratch(CometArena.SCRATCH_DIFF, nCol, metrics);
 
         // Smooth comet profile
-        double[] y1 = convFilter(cometProfile,smoothKernel,true);
-        printArray(y1);
+        int n1 = convFilter(cometProfile,nCol,smoothKernel,kernelWidth,true,smoothed);
+        printArray(smoothed, n1);
         // Differentiate comet profile
-        double[] y2 = convFilter(y1,diffKernel,false);
-        printArray(y2);
+        int n2 = convFilter(smoothed,n1,diffKernel,2,false,diff);
+        printArray(diff, n2);
         // Smooth differential
-        double[] y3 = convFilter(y2,smoothKernel,true);
-        printArray(y3);
+        int n3 = convFilter(diff,n2,smoothKernel,kernelWidth,true,cometProfile);
+        printArray(cometProfile, n3);
         // Differentiate again
-        double[] y4 = convFilter(y3,diffKernel,false);
-        printArray(y4);
+        int n4 = convFilter(cometProfile,n3,diffKernel,2,false,smoothed);
+        printArray(smoothed, n4);
         // Smooth again
-        double[] ddCometProfile = convFilter(y4,smoothKernel,true);
+        double[] ddCometProfile = diff;
+        int nDd = convFilter(smoothed,n4,smoothKernel,kernelWidth,true,ddCometProfile);
         IJ.log("Kernel width: "+kernelWidth);
 
         /*printArray(ddCometProfile);
@@ -962,7 +1594,7 @@ public class CometAnalyzer {
         return edge;*/
 
         int zcross = 0;
-        for(int i=0; i < ddCometProfile.length-1; i++){
+        for(int i=0; i < nDd-1; i++){
             if((ddCometProfile[i+1] > 0) && (ddCometProfile[i] < 0)){
                 IJ.log("Transition at "+i);
                 zcross = i;
@@ -971,7 +1603,7 @@ public class CometAnalyzer {
             }
 
         int ddmax = 0;
-        for(int i=1; i < ddCometProfile.length-1; i++){
+        for(int i=1; i < nDd-1; i++){
             if(i<zcross) continue;
             if(ddCometProfile[i+1] <= ddCometProfile[i] &&
                     ddCometProfile[i-1] <= ddCometProfile[i]){
@@ -986,7 +1618,7 @@ public class CometAnalyzer {
         return ddmax;
     }
 
-    private double[] convFilter(double[] x, double[] kernel, boolean pad){
+    double[] convFilter(double[] x, double[] kernel, boolean pad){
         int outLen;
         if(pad){
             outLen = x.length;
@@ -996,7 +1628,25 @@ public class CometAnalyzer {
             }
 
         double[] y = new double[outLen];
-        int kernRadius = (int)Math.floor(kernel.length / 2.0);
+        convFilter(x, x.length, kernel, kernel.length, pad, y);
+        return y;
+    }
+
+    // Filter the first xLen values of x with the first kLen of kernel into y,
+    // which must not be x; returns the number of values written
+    int convFilter(double[] x, int xLen, double[] kernel, int kLen, boolean pad, double[] y){
+        int outLen;
+        if(pad){
+            outLen = xLen;
+            }
+        else {
+            outLen = xLen + 1 - kLen;
+            }
+        if(outLen < 0){
+            throw new NegativeArraySizeException(String.valueOf(outLen));
+            }
+
+        int kernRadius = (int)Math.floor(kLen / 2.0);
         int kernStart;
         for(int i = 0; i < outLen; i++){
             y[i] = 0.0;
@@ -1006,8 +1656,8 @@ public class CometAnalyzer {
             else {
                 kernStart = i;
                 }
-            for(int j = 0; j< kernel.length; j++){
-                if(kernStart + j >= 0 && kernStart + j < x.length){
+            for(int j = 0; j< kLen; j++){
+                if(kernStart + j >= 0 && kernStart + j < xLen){
                     y[i] += kernel[j]*x[kernStart + j];
                     }
                 }
@@ -1039,7 +1689,7 @@ public class CometAnalyzer {
             }
         }
 */
-        return y;
+        return outLen;
     }
 
     private int getLocalThresh(int[] hist, int nBins, double percent){
@@ -1059,41 +1709,60 @@ public class CometAnalyzer {
         return 0;
         }
 
-    private ByteProcessor getGrayscaleCopy(ImageProcessor ip, int imgType){
-        ByteProcessor ipGrayscale = null;
-
-        if(imgType == ImagePlus.GRAY8){
-            ipGrayscale = (ByteProcessor)ip.duplicate();
+    // Grayscale copy of an image in a pixel buffer leased from the arena;
+    // 16-bit images are converted by ImageJ into a buffer of their own
+    private ByteProcessor getGrayscale(ImageProcessor ip, int imgType,
+                                       CometArena arena, ArrayList<byte[]> leased){
+        if(imgType == ImagePlus.GRAY16){
+            return new ByteProcessor(ip,true);
             }
-        else if(imgType == ImagePlus.GRAY16){
-            ipGrayscale = new ByteProcessor(ip,true);
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] pixels = arena.leaseBytes(w*h, metrics);
+        leased.add(pixels);
+        if(imgType == ImagePlus.GRAY8){
+            System.arraycopy((byte[])ip.getPixels(), 0, pixels, 0, w*h);
+            // Same color model and display range as ip.duplicate()
+            ByteProcessor copy = new ByteProcessor(w, h, pixels, ip.getColorModel());
+            if(ip.getMin() != 0 || ip.getMax() != 255){
+                copy.setMinAndMax(ip.getMin(), ip.getMax());
+                }
+            return copy;
             }
-        // RGB
-        else if(imgType == ImagePlus.COLOR_RGB){
-            ipGrayscale = getCometChannel(ip);
+        ByteProcessor bp = new ByteProcessor(w, h, pixels);
+        if(activeChannel > 0){
+            return ((ColorProcessor)ip).getChannel(activeChannel, bp);
             }
-        return ipGrayscale;
-    }
+        return getCometChannel(ip, bp);
+        }
 
-    private ByteProcessor getCometChannel(ImageProcessor ip){
-        int w = ip.getWidth();
-        int h = ip.getHeight();
-        int size = w*h;
-        byte[] rPix = new byte[size];
-        byte[] gPix = new byte[size];
-        byte[] bPix = new byte[size];
+    ByteProcessor getCometChannel(ImageProcessor ip){
+        return getCometChannel(ip, new ByteProcessor(ip.getWidth(), ip.getHeight()));
+        }
+
+    // The brightest channel of an RGB image, written into bp
+    ByteProcessor getCometChannel(ImageProcessor ip, ByteProcessor bp){
+        int size = ip.getWidth()*ip.getHeight();
         int[] ipPix = (int[])(ip.getPixels());
-        ByteProcessor bp = new ByteProcessor(w,h);
+        int shift = getCometChannelShift(ip);
         byte[] bpPix = (byte[])bp.getPixels();
+        for (int i=0;i<size;i++){
+            bpPix[i] = (byte)(ipPix[i]>>>shift);
+            }
+
+        return bp;
+        }
+
+    // Bit position of the brightest channel of an RGB image
+    private int getCometChannelShift(ImageProcessor ip){
+        int size = ip.getWidth()*ip.getHeight();
+        int[] ipPix = (int[])(ip.getPixels());
+        // Channel means first, then the chosen channel is written straight
+        // into the result, without a copy of each channel
         double rAvgInt=0, gAvgInt=0, bAvgInt=0;
         for (int i=0;i<size;i++){
-            rPix[i] = (byte)((ipPix[i] & 0xff0000)>>>16);
-            rAvgInt += (double)rPix[i]/size;
-            gPix[i] = (byte)((ipPix[i] & 0x00ff00)>>>8);
-            gAvgInt += (double)gPix[i]/size;
-            bPix[i] = (byte)(ipPix[i] & 0x0000ff);
-            bAvgInt += (double)bPix[i]/size;
-            //bpPix[i] = (byte)((ipPix[i] & 0x00ff00)>>>8);
+            rAvgInt += (double)(byte)((ipPix[i] & 0xff0000)>>>16)/size;
+            gAvgInt += (double)(byte)((ipPix[i] & 0x00ff00)>>>8)/size;
+            bAvgInt += (double)(byte)(ipPix[i] & 0x0000ff)/size;
             }
 
         IJ.log("Red: " + rAvgInt + ", green:" + gAvgInt + ", blue: " + bAvgInt);
@@ -1101,23 +1770,131 @@ public class CometAnalyzer {
         boolean rb = (rAvgInt > bAvgInt);
         boolean gb = (gAvgInt > bAvgInt);
 
+        int shift;
         if(rg && rb){
-            for (int i=0;i<size;i++){
-                bpPix[i] = rPix[i];
-                }
+            shift = 16;
             }
         else if (!rg && gb){
-            for (int i=0;i<size;i++){
-                bpPix[i] = gPix[i];
-                }
+            shift = 8;
             }
         else {
-            for (int i=0;i<size;i++){
-                bpPix[i] = bPix[i];
+            shift = 0;
+            }
+        return shift;
+        }
+
+    // Tiles of an image on the heap, converted to 8-bit as getGrayscale
+    // converts the whole image: 16-bit images scaled to their display
+    // range, the chosen or brightest channel of RGB images
+    private class ImageTiles implements CometTileSource {
+        private final ImageProcessor ip;
+        private final int imgType;
+        private int shift, min;
+        private double scale;
+
+        ImageTiles(ImageProcessor ip, int imgType){
+            this.ip = ip;
+            this.imgType = imgType;
+            if(imgType == ImagePlus.GRAY16){
+                // Same scaling as ImageJ's TypeConverter
+                min = (int)ip.getMin();
+                scale = 256.0/((int)ip.getMax() - min + 1);
+                }
+            else if(imgType == ImagePlus.COLOR_RGB){
+                shift = (activeChannel > 0) ? 8*(3 - activeChannel) : getCometChannelShift(ip);
                 }
             }
 
-        return bp;
+        public int getWidth(){
+            return ip.getWidth();
+            }
+
+        public int getHeight(){
+            return ip.getHeight();
+            }
+
+        // Rows are read straight from the pixel array; the processor's ROI
+        // is shared with the other tiles and must not be changed here
+        public ByteProcessor getTile(Rectangle r){
+            ByteProcessor bp = new ByteProcessor(r.width, r.height);
+            byte[] dst = (byte[])bp.getPixels();
+            int w = ip.getWidth();
+            for(int y=0; y<r.height; y++){
+                int src = (r.y + y)*w + r.x, out = y*r.width;
+                if(imgType == ImagePlus.GRAY16){
+                    short[] pixels = (short[])ip.getPixels();
+                    for(int x=0; x<r.width; x++){
+                        int v = (pixels[src + x] & 0xffff) - min;
+                        if(v < 0) v = 0;
+                        v = (int)(v*scale + 0.5);
+                        dst[out + x] = (byte)((v > 255) ? 255 : v);
+                        }
+                    }
+                else if(imgType == ImagePlus.COLOR_RGB){
+                    int[] pixels = (int[])ip.getPixels();
+                    for(int x=0; x<r.width; x++){
+                        dst[out + x] = (byte)(pixels[src + x]>>>shift);
+                        }
+                    }
+                else {
+                    System.arraycopy((byte[])ip.getPixels(), src, dst, out, r.width);
+                    }
+                }
+            return bp;
+            }
+        }
+
+    // Copy of the pixels around one comet. Comet coordinates are moved into
+    // the tile for measurement and back into the image afterwards, so that
+    // head finding and the profiles never touch the full image.
+    private static class CometTile {
+        final Rectangle region;
+        final ByteProcessor ip;
+
+        CometTile(CometTileSource source, Rectangle region){
+            this.region = region;
+            this.ip = source.getTile(region);
+            }
+
+        // Take the pixels of an earlier tile where the two overlap
+        void copyFrom(CometTile earlier){
+            Rectangle overlap = region.intersection(earlier.region);
+            byte[] src = (byte[])earlier.ip.getPixels();
+            byte[] dst = (byte[])ip.getPixels();
+            for(int y=overlap.y; y<overlap.y+overlap.height; y++){
+                System.arraycopy(src, (y - earlier.region.y)*earlier.region.width +
+                                      overlap.x - earlier.region.x,
+                                 dst, (y - region.y)*region.width + overlap.x - region.x,
+                                 overlap.width);
+                }
+            }
+
+        void toTile(Comet comet){
+            comet.cometRoi = shift(comet.cometRoi, -region.x, -region.y);
+            }
+
+        // The ROI and the values set by setCometParams back in the image
+        void paramsToImage(Comet comet){
+            comet.cometRoi = shift(comet.cometRoi, region.x, region.y);
+            comet.x += region.x;
+            comet.y += region.y;
+            comet.headFrontCenterY += region.y;
+            comet.headRoiCenterY += region.y;
+            }
+
+        void toImage(Comet comet){
+            paramsToImage(comet);
+            comet.headRoi = shift(comet.headRoi, region.x, region.y);
+            comet.headCentroid += region.x;
+            comet.tailCentroid += region.x;
+            }
+
+        private static Roi shift(Roi roi, int dx, int dy){
+            if(roi == null) return null;
+            Rectangle br = roi.getBounds();
+            roi.setLocation(br.x + dx, br.y + dy);
+            return roi;
+            }
         }
 
     private class CometParticleAnalyzer extends ParticleAnalyzer {
@@ -1136,7 +1913,9 @@ public class CometAnalyzer {
                                      Object dummy, double minSize,
                                      double maxSize, double minCirc,
                                      double maxCirc){
-            super(options, measurements, null, minSize, maxSize,
+            // Use a private results table; the shared system table is not
+            // safe when several images are analyzed at the same time
+            super(options, measurements, new ResultsTable(), minSize, maxSize,
                   minCirc, maxCirc);
             cometRois = new Vector<Roi>();
         }
@@ -0,0 +1,136 @@
+/**
+* CometArena.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometArena.java keeps the buffers of one worker thread for reuse
+* across images and comets. Pixel buffers are leased for the analysis
+* of an image and returned at its end; a later image of the same size
+* gets them back instead of new arrays. Scratch arrays for the comet
+* profiles only grow, when a wider comet arrives. The filters that
+* keep no state between calls are also kept. Every request is counted
+* in the CometMetrics of the image, so the reuse rate shows in the run
+* report.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.plugin.filter.RankFilters;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+public class CometArena {
+    // Free pixel buffers kept per thread; a batch needs two per image
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    // Scratch slots for the head edge profiles
+    public static final int SCRATCH_PROFILE = 0;
+    public static final int SCRATCH_KERNEL = 1;
+    public static final int SCRATCH_SMOOTH = 2;
+    public static final int SCRATCH_DIFF = 3;
+    private static final int N_SCRATCH = 4;
+
+    private static final ThreadLocal<CometArena> arenas = new ThreadLocal<CometArena>(){
+        protected CometArena initialValue(){
+            CometArena arena = new CometArena();
+            all.add(arena);
+            return arena;
+        }
+    };
+    // Arenas of live threads, for clearAll
+    private static final Set<CometArena> all =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<CometArena,Boolean>()));
+
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+    private final double[][] scratch = new double[N_SCRATCH][];
+    private RankFilters rankFilters;
+    private BackgroundSubtracter backgroundSubtracter;
+
+    private CometArena(){}
+
+    // The arena of the current thread
+    public static CometArena get(){
+        return arenas.get();
+    }
+
+    // Drop the buffers kept by every thread, e.g. at the end of a batch
+    public static void clearAll(){
+        synchronized(all){
+            for(CometArena arena : all){
+                arena.clear();
+            }
+        }
+    }
+
+    public synchronized void clear(){
+        freeBuffers.clear();
+        for(int i=0; i<N_SCRATCH; i++) scratch[i] = null;
+    }
+
+    // A pixel buffer of exactly this length, as ImageJ processors need;
+    // its contents are undefined. Give it back with release.
+    public synchronized byte[] leaseBytes(int length, CometMetrics metrics){
+        for(Iterator<byte[]> it = freeBuffers.iterator(); it.hasNext();){
+            byte[] buffer = it.next();
+            if(buffer.length == length){
+                it.remove();
+                metrics.countReuse(CometMetrics.PIXEL_BUFFERS, 1, 1);
+                return buffer;
+            }
+        }
+        metrics.countReuse(CometMetrics.PIXEL_BUFFERS, 1, 0);
+        return new byte[length];
+    }
+
+    // Return a leased buffer; the oldest free buffer is dropped when too many are kept
+    public synchronized void release(byte[] buffer){
+        if(freeBuffers.size() >= MAX_FREE_BUFFERS) freeBuffers.pollLast();
+        freeBuffers.addFirst(buffer);
+    }
+
+    // A scratch array of at least this length. It is the same array on every
+    // call with the same slot, so it must not be kept or used across calls
+    // that may run other analysis work on this thread.
+    public double[] scratch(int slot, int length, CometMetrics metrics){
+        double[] s = scratch[slot];
+        if(s == null || s.length < length){
+            s = new double[Math.max(length, 64)];
+            scratch[slot] = s;
+            metrics.countReuse(CometMetrics.SCRATCH_ARRAYS, 1, 0);
+        }
+        else {
+            metrics.countReuse(CometMetrics.SCRATCH_ARRAYS, 1, 1);
+        }
+        return s;
+    }
+
+    public RankFilters getRankFilters(){
+        if(rankFilters == null) rankFilters = new RankFilters();
+        return rankFilters;
+    }
+
+    public BackgroundSubtracter getBackgroundSubtracter(){
+        if(backgroundSubtracter == null) backgroundSubtracter = new BackgroundSubtracter();
+        return backgroundSubtracter;
+    }
+}
@@ -0,0 +1,476 @@
+/**
+* CometBatch.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometBatch.java is the batch engine for comet analysis. It opens
+* and analyzes several input images at once on a fixed thread pool.
+* Each worker uses its own CometAnalyzer, so no analysis state is
+* shared between images. Results are handed back on the calling
+* thread in input order, so comet IDs and output order are the same
+* as for a sequential run. Uncompressed TIFF files of at least
+* DEFAULT_MAP_BYTES are read through a memory mapping (MappedTiff) and
+* analyzed from it, so that slide scans are not decoded onto the heap.
+* With setTiling, images larger than the tile size are searched for
+* comets tile by tile, which a mapped file is read in, so its whole
+* image is only made if a listener asks for it. Every plane
+* of a stack or hyperstack, or the planes of the selected channel, slice
+* and frame ranges, is analyzed in parallel and reported as a result of
+* its own, keyed <file>#c<channel>z<slice>t<frame> with the dimensions
+* the stack has. Everything a batch runs, the images, their planes and
+* the comets of each image, shares one pool of the batch's thread count,
+* so the setting bounds the processors used; waiting tasks let the pool
+* run others in their place. A batch can be cancelled from another thread: no new
+* image is started, the running analyses stop at their next stage or
+* comet, and the images completed before are still handed back.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CometBatch {
+    public static final long DEFAULT_MAP_BYTES = 1L << 30;
+
+    private final int cometOptions;
+    private final String thresholdMethod;
+    private final int nThreads;
+    private final CometMetrics metrics;
+    private long mapBytes = DEFAULT_MAP_BYTES;
+    private int tileSize = 0;
+    private int tileHalo = CometAnalyzer.DEFAULT_TILE_HALO;
+    private int rgbChannel = 0;
+    private int medianEngine = CometAnalyzer.MEDIAN_HISTOGRAM;
+    private CometPreprocessCache preprocessCache;
+    // First and last channel, slice and frame of stacks to analyze; null for all
+    private int[] channels, slices, frames;
+    private AtomicBoolean cancelled = new AtomicBoolean();
+    // Pool of the running batch, for the analyzers and stack planes
+    private volatile ForkJoinPool workers;
+
+    public CometBatch(int cometOptions, String thresholdMethod, int nThreads){
+        this.cometOptions = cometOptions;
+        this.thresholdMethod = thresholdMethod;
+        this.nThreads = Math.max(1, nThreads);
+        this.metrics = new CometMetrics("batch");
+    }
+
+    public static int defaultThreads(){
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getThreads(){
+        return nThreads;
+    }
+
+    // Memory-map TIFF files of at least this size; Long.MAX_VALUE never maps
+    public void setMapBytes(long mapBytes){
+        this.mapBytes = mapBytes;
+    }
+
+    // Tile size and halo of CometAnalyzer.setTiling; a tile size of 0 searches whole images
+    public void setTiling(int tileSize, int halo){
+        this.tileSize = tileSize;
+        this.tileHalo = halo;
+    }
+
+    // RGB channel to analyze (1 red, 2 green, 3 blue), or 0 for the brightest
+    public void setChannel(int channel){
+        this.rgbChannel = channel;
+    }
+
+    // Median filter of the background correction, see CometAnalyzer.setMedianEngine
+    public void setMedianEngine(int engine){
+        this.medianEngine = engine;
+    }
+
+    // Cache of background corrected images shared by the workers, or null
+    public void setPreprocessCache(CometPreprocessCache cache){
+        this.preprocessCache = cache;
+    }
+
+    // Ranges of stack planes to analyze, as {first, last}, 1-based; null selects all
+    public void setPlanes(int[] channels, int[] slices, int[] frames){
+        this.channels = channels;
+        this.slices = slices;
+        this.frames = frames;
+    }
+
+    // Parse a plane range such as "3" or "2-5"; null or "all" selects all planes
+    public static int[] parseRange(String range){
+        if(range == null || range.equalsIgnoreCase("all")) return null;
+        int dash = range.indexOf('-');
+        int first = Integer.parseInt(range.substring(0, (dash < 0) ? range.length() : dash).trim());
+        int last = (dash < 0) ? first : Integer.parseInt(range.substring(dash + 1).trim());
+        if(first < 1 || last < first) throw new NumberFormatException("bad range " + range);
+        return new int[]{first, last};
+    }
+
+    // Share a cancel flag with the caller instead of the batch's own
+    public void setCancelFlag(AtomicBoolean cancelled){
+        this.cancelled = cancelled;
+    }
+
+    // Stop the batch; may be called from any thread
+    public void cancel(){
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled(){
+        return cancelled.get();
+    }
+
+    // Metrics of the whole batch, with the metrics of each image in input order
+    public CometMetrics getMetrics(){
+        return metrics;
+    }
+
+    // Make a new analyzer with the batch settings; analyzers are cheap and never shared
+    public CometAnalyzer newAnalyzer(){
+        CometAnalyzer cometAnalyzer = new CometAnalyzer();
+        cometAnalyzer.setThresholdMethod(thresholdMethod);
+        cometAnalyzer.setTiling(tileSize, tileHalo);
+        cometAnalyzer.setChannel(rgbChannel);
+        cometAnalyzer.setMedianEngine(medianEngine);
+        cometAnalyzer.setPreprocessCache(preprocessCache);
+        cometAnalyzer.setCancelFlag(cancelled);
+        if(workers != null) cometAnalyzer.setMeasureExecutor(workers);
+        return cometAnalyzer;
+    }
+
+    public void run(File[] inFiles, Listener listener){
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(nThreads, new WorkerFactory("OpenComet-worker-"),
+                                             null, false);
+        workers = pool;
+        // Keep a bounded number of images in flight so that fast workers
+        // cannot open the whole input while the first image is still pending
+        int window = 2*nThreads;
+        ArrayDeque<Future<ImageResult[]>> pending = new ArrayDeque<Future<ImageResult[]>>();
+        int next = 0;
+        try {
+            while(next < inFiles.length && pending.size() < window){
+                pending.add(pool.submit(new ImageTask(next, inFiles[next], listener)));
+                next++;
+            }
+            int fileIndex = 0, index = 0;
+            while(!pending.isEmpty()){
+                Future<ImageResult[]> future = pending.poll();
+                ImageResult[] results;
+                try {
+                    results = future.get();
+                }
+                catch(ExecutionException ex){
+                    File inFile = inFiles[fileIndex];
+                    IJ.log("Analysis failed for " + inFile.getName() + ": " + ex.getCause());
+                    results = new ImageResult[]{new ImageResult(inFile, inFile.getName(), 0)};
+                }
+                if(next < inFiles.length && !cancelled.get()){
+                    pending.add(pool.submit(new ImageTask(next, inFiles[next], listener)));
+                    next++;
+                }
+                for(ImageResult result : results){
+                    result.index = index++;
+                    listener.imageCompleted(result);
+                    metrics.addImage(result.metrics);
+                }
+                fileIndex++;
+                if(!cancelled.get()){
+                    long elapsed = System.nanoTime() - startTime;
+                    listener.progress(fileIndex, inFiles.length,
+                                      elapsed/fileIndex*(inFiles.length - fileIndex));
+                }
+            }
+            if(cancelled.get()){
+                IJ.log("Batch cancelled; the " + index + " results completed before are kept");
+            }
+        }
+        catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            for(Future<ImageResult[]> future : pending){
+                future.cancel(true);
+            }
+        }
+        finally {
+            pool.shutdown();
+            workers = null;
+            // Buffers are reused within a batch, not kept after it
+            CometArena.clearAll();
+            metrics.setWallNanos(System.nanoTime() - startTime);
+        }
+    }
+
+    public interface Listener {
+        // Called on a worker thread right after an image has been analyzed
+        void imageAnalyzed(ImageResult result);
+        // Called on the thread running the batch, in input order
+        void imageCompleted(ImageResult result);
+        // Called on the thread running the batch after each input file, with
+        // the estimated time left from the average time per file so far
+        default void progress(int filesDone, int filesTotal, long etaNanos){}
+    }
+
+    public static class ImageResult {
+        // Position of the result in the output, set before imageCompleted;
+        // the position of the file unless earlier files were stacks
+        public int index;
+        public final File inFile;
+        public final String imageKey;
+        // Stack position of the analyzed plane, 1-based, or 0 for single images
+        public final int plane;
+        // Opened input image or stack plane; null if the file could not be
+        // opened or is read through a mapping, see getImage
+        public ImagePlus image;
+        // Input file read through a memory mapping, or null
+        public MappedTiff mapped;
+        public Comet[] comets;
+        // Optional output image made by the listener on the worker thread
+        public ImagePlus output;
+        // Stage timings of this image; listeners may record their own stages
+        public final CometMetrics metrics;
+
+        ImageResult(File inFile, String imageKey, int plane){
+            this.inFile = inFile;
+            this.imageKey = imageKey;
+            this.plane = plane;
+            this.metrics = new CometMetrics(imageKey);
+        }
+
+        // Whether the input could be opened
+        public boolean isOpened(){
+            return image != null || mapped != null;
+        }
+
+        public int getWidth(){
+            return (image != null) ? image.getWidth() : mapped.getWidth();
+        }
+
+        public int getHeight(){
+            return (image != null) ? image.getHeight() : mapped.getHeight();
+        }
+
+        // The input image. A mapped file is read whole into the 8-bit image
+        // that was analyzed on the first call, so listeners that draw no
+        // output image never hold it.
+        public synchronized ImagePlus getImage(){
+            if(image == null && mapped != null){
+                image = new ImagePlus(imageKey, mapped.getGrayscale());
+            }
+            return image;
+        }
+
+        // Drop the pixels of the input image once they are not needed
+        public synchronized void flush(){
+            if(image != null) image.flush();
+        }
+    }
+
+    private class ImageTask implements Callable<ImageResult[]> {
+        private final int index;
+        private final File inFile;
+        private final Listener listener;
+
+        ImageTask(int index, File inFile, Listener listener){
+            this.index = index;
+            this.inFile = inFile;
+            this.listener = listener;
+        }
+
+        public ImageResult[] call(){
+            // Files not started when the batch is cancelled give no result
+            if(cancelled.get()) return new ImageResult[0];
+            long startTime = System.nanoTime();
+            // Try to open file as image
+            long a0 = CometMetrics.allocatedBytes();
+            MappedTiff mapped = mapImage(inFile);
+            ImagePlus image = (mapped != null) ? null : IJ.openImage(inFile.getPath());
+            if(image != null && image.getStackSize() > 1){
+                return analyzeStack(image, startTime, a0);
+            }
+            ImageResult result = new ImageResult(inFile, inFile.getName(), 0);
+            result.index = index;
+            result.image = image;
+            result.mapped = mapped;
+            result.metrics.record(CometMetrics.OPEN_IMAGE, startTime, a0);
+            if(result.isOpened()){
+                try {
+                    analyze(result);
+                }
+                catch(RuntimeException ex){
+                    if(!isCancellation(ex)) throw ex;
+                    result.flush();
+                    return new ImageResult[0];
+                }
+            }
+            result.metrics.setWallNanos(System.nanoTime() - startTime);
+            return new ImageResult[]{result};
+        }
+
+        private void analyze(ImageResult result){
+            IJ.log("Run started, image key: " + result.imageKey);
+            CometAnalyzer cometAnalyzer = newAnalyzer();
+            cometAnalyzer.setMetrics(result.metrics);
+            result.comets = (result.mapped != null) ?
+                            cometAnalyzer.cometAnalyzerRun(result.mapped, cometOptions) :
+                            cometAnalyzer.cometAnalyzerRun(result.image, cometOptions);
+            IJ.log("Run complete, image key: " + result.imageKey);
+            listener.imageAnalyzed(result);
+        }
+
+        // Analyze the selected planes of a stack in parallel, one result each
+        private ImageResult[] analyzeStack(ImagePlus image, long startTime, long a0){
+            int nChannels = image.getNChannels();
+            int nSlices = image.getNSlices();
+            int nFrames = image.getNFrames();
+            int[] c = clampRange(channels, nChannels);
+            int[] z = clampRange(slices, nSlices);
+            int[] t = clampRange(frames, nFrames);
+            ArrayList<ImageResult> results = new ArrayList<ImageResult>();
+            for(int frame=t[0]; frame<=t[1]; frame++){
+                for(int slice=z[0]; slice<=z[1]; slice++){
+                    for(int channel=c[0]; channel<=c[1]; channel++){
+                        String key = inFile.getName() + "#" +
+                                     ((nChannels > 1) ? "c" + channel : "") +
+                                     ((nSlices > 1) ? "z" + slice : "") +
+                                     ((nFrames > 1) ? "t" + frame : "");
+                        results.add(new ImageResult(inFile, key,
+                                                    image.getStackIndex(channel, slice, frame)));
+                    }
+                }
+            }
+            if(results.isEmpty()){
+                IJ.log("No planes of " + inFile.getName() + " selected");
+                return new ImageResult[0];
+            }
+            results.get(0).metrics.record(CometMetrics.OPEN_IMAGE, startTime, a0);
+
+            final ImageStack stack = image.getStack();
+            CompletableFuture<?>[] done = new CompletableFuture<?>[results.size()];
+            // Planes stopped by a cancel, which give no result
+            final boolean[] planeCancelled = new boolean[done.length];
+            for(int i=0; i<done.length; i++){
+                final ImageResult result = results.get(i);
+                final int plane = i;
+                done[i] = CompletableFuture.runAsync(new Runnable(){
+                    public void run(){
+                        if(cancelled.get()){
+                            planeCancelled[plane] = true;
+                            return;
+                        }
+                        long planeStart = System.nanoTime();
+                        ImageProcessor ip = stack.getProcessor(result.plane);
+                        // 16-bit planes are scaled to their own range
+                        ip.resetMinAndMax();
+                        result.image = new ImagePlus(result.imageKey, ip);
+                        try {
+                            analyze(result);
+                        }
+                        catch(RuntimeException ex){
+                            if(!isCancellation(ex)) throw ex;
+                            planeCancelled[plane] = true;
+                        }
+                        result.metrics.setWallNanos(System.nanoTime() - planeStart);
+                    }
+                }, workers);
+            }
+            try {
+                CompletableFuture.allOf(done).join();
+            }
+            catch(CompletionException ex){
+                if(ex.getCause() instanceof RuntimeException){
+                    throw (RuntimeException)ex.getCause();
+                }
+                throw ex;
+            }
+            ArrayList<ImageResult> completed = new ArrayList<ImageResult>();
+            for(int i=0; i<planeCancelled.length; i++){
+                if(!planeCancelled[i]) completed.add(results.get(i));
+            }
+            return completed.toArray(new ImageResult[completed.size()]);
+        }
+    }
+
+    // Whether an analysis failed because the batch was cancelled; the
+    // exception may come wrapped by the measurement futures
+    private static boolean isCancellation(Throwable ex){
+        for(Throwable t=ex; t!=null; t=t.getCause()){
+            if(t instanceof CometAnalyzer.CancelledException) return true;
+        }
+        return false;
+    }
+
+    // A selected range limited to the size of a stack dimension
+    private static int[] clampRange(int[] range, int size){
+        if(range == null) return new int[]{1, size};
+        return new int[]{range[0], Math.min(range[1], size)};
+    }
+
+    // Large uncompressed TIFFs are read through a mapping; null for files
+    // that ImageJ opens
+    private MappedTiff mapImage(File inFile){
+        if(inFile.length() < mapBytes) return null;
+        try {
+            MappedTiff tiff = MappedTiff.open(inFile, rgbChannel);
+            if(tiff != null){
+                IJ.log("Reading " + inFile.getName() + " through a memory mapping");
+            }
+            return tiff;
+        }
+        catch(IOException ex){
+            IJ.log("Cannot map " + inFile.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // Names the threads of an analysis pool. They keep the class loader of
+    // the thread that made the pool, as ImageJ plugins need, instead of the
+    // system class loader that default pool threads get.
+    static class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final String prefix;
+        private final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(String prefix){
+            this.prefix = prefix;
+        }
+
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool){
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName(prefix + count.incrementAndGet());
+            t.setContextClassLoader(loader);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+* CometCsvWriter.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometCsvWriter.java writes the CSV results while a batch runs. The
+* rows of each image are appended and flushed as soon as the image is
+* analyzed, so a long batch that stops early keeps the rows of every
+* image finished so far. The summary statistics are appended at the
+* end from the measurements kept in the comet table.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class CometCsvWriter {
+    private static final String SEP = ",";
+    private static final String[] HEADERS = {"Image", "ID", "Status", "Length", "HeadLength",
+        "TailLength", "HeadArea", "TailArea", "CometArea", "HeadIntensity", "TailIntensity",
+        "CometIntensity", "HeadDNA", "TailDNA", "CometDNA", "HeadDNA%",
+        "TailDNA%", "TailMoment", "TailOliveMoment"};
+
+    private final PrintWriter out;
+
+    // Create the file and write the header
+    public CometCsvWriter(String outPath) throws IOException {
+        out = new PrintWriter(new BufferedWriter(new FileWriter(outPath)));
+        StringBuilder header = new StringBuilder();
+        for(int i=0; i<HEADERS.length; i++){
+            if(i > 0) header.append(SEP);
+            header.append(escapeCsv(HEADERS[i]));
+        }
+        out.println(header.toString());
+        out.flush();
+    }
+
+    // Append the rows of one stored image and flush them to disk
+    public synchronized void writeEntry(CometTable table, CometResultStore.Entry entry){
+        IJ.log("Image key: "+entry.imageKey);
+        String key = escapeCsv(entry.imageKey);
+        for(int row=entry.firstRow; row<entry.firstRow+entry.rowCount; row++){
+            // Include VALID, INVALID_SIZE, and OUTLIER comets
+            int status = table.getStatus(row);
+            if(status == Comet.VALID ||
+               status == Comet.INVALID_SIZE ||
+               status == Comet.OUTLIER){
+                out.println(key + SEP + table.getMeasurementString(row, SEP));
+            }
+        }
+        out.flush();
+    }
+
+    // Append the summary statistics of all comets in the table
+    public synchronized void writeStatistics(CometTable table){
+        writeStatistics(table, false);
+    }
+
+    // Append the summary statistics, with the quantile rows if requested;
+    // returns them so the caller can save the quantile sketches
+    public synchronized CometStatistics writeStatistics(CometTable table, boolean quantiles){
+        // normal, normal+outlier, normal+invalid_size and all_measurable comets
+        CometStatistics cometStats = new CometStatistics(table, quantiles);
+        out.print(cometStats.getStatisticsString(SEP));
+        out.flush();
+        return cometStats;
+    }
+
+    // Append the statistics kept up to date during review
+    public synchronized void writeStatistics(CometLiveStatistics liveStats){
+        out.print(liveStats.getStatisticsString(SEP));
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+        if(out.checkError()){
+            throw new IOException("could not write the CSV results");
+        }
+    }
+
+    private static String escapeCsv(String value){
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+* CometGrid.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometGrid.java is a uniform grid over the bounding boxes of the
+* comets of one image, used to find the comet under a mouse click.
+* Cells are about the size of a comet, so a click only tests the few
+* comets whose boxes overlap its cell, however many the image has.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.awt.Rectangle;
+
+public class CometGrid {
+    private static final int MIN_CELL = 16;
+
+    private final Comet[] comets;
+    private final int cellSize, cols, rows;
+    // Comet indices of cell k are items[start[k]..start[k+1]), in ascending order
+    private final int[] start;
+    private final int[] items;
+
+    public CometGrid(Comet[] comets){
+        this.comets = comets;
+        Rectangle[] bounds = new Rectangle[comets.length];
+        long sumSize = 0;
+        int nBoxes = 0, maxX = 0, maxY = 0;
+        for(int i=0; i<comets.length; i++){
+            if(comets[i].cometRoi == null) continue;
+            Rectangle r = comets[i].cometRoi.getBounds();
+            bounds[i] = r;
+            sumSize += Math.max(r.width, r.height);
+            nBoxes++;
+            maxX = Math.max(maxX, r.x + r.width);
+            maxY = Math.max(maxY, r.y + r.height);
+        }
+        cellSize = Math.max(MIN_CELL, (nBoxes == 0) ? MIN_CELL : (int)(sumSize / nBoxes));
+        cols = maxX / cellSize + 1;
+        rows = maxY / cellSize + 1;
+
+        // Count the boxes of each cell, then fill them in comet order
+        start = new int[cols*rows + 1];
+        for(int i=0; i<comets.length; i++){
+            if(bounds[i] == null) continue;
+            Rectangle r = bounds[i];
+            for(int gy=cell(r.y); gy<=cell(r.y + r.height - 1); gy++){
+                for(int gx=cell(r.x); gx<=cell(r.x + r.width - 1); gx++){
+                    start[gy*cols + gx + 1]++;
+                }
+            }
+        }
+        for(int k=0; k<cols*rows; k++){
+            start[k + 1] += start[k];
+        }
+        items = new int[start[cols*rows]];
+        int[] next = new int[cols*rows];
+        System.arraycopy(start, 0, next, 0, next.length);
+        for(int i=0; i<comets.length; i++){
+            if(bounds[i] == null) continue;
+            Rectangle r = bounds[i];
+            for(int gy=cell(r.y); gy<=cell(r.y + r.height - 1); gy++){
+                for(int gx=cell(r.x); gx<=cell(r.x + r.width - 1); gx++){
+                    items[next[gy*cols + gx]++] = i;
+                }
+            }
+        }
+    }
+
+    private int cell(int coordinate){
+        return Math.max(0, coordinate) / cellSize;
+    }
+
+    // Index of the first comet whose ROI contains (x, y), or -1
+    public int find(int x, int y){
+        if(x < 0 || y < 0) return -1;
+        int gx = x / cellSize, gy = y / cellSize;
+        if(gx >= cols || gy >= rows) return -1;
+        int k = gy*cols + gx;
+        for(int j=start[k]; j<start[k + 1]; j++){
+            int i = items[j];
+            if(comets[i].cometRoi.contains(x, y)) return i;
+        }
+        return -1;
+    }
+}
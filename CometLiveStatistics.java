@@ -0,0 +1,297 @@
+/**
+* CometLiveStatistics.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometLiveStatistics.java keeps the summary statistics of the status
+* groups up to date while comets are reviewed. For each measurable
+* status it holds running sums of every measurement and a Fenwick tree
+* over the rank of each value, so moving one comet to another status
+* costs O(log n) per measurement and the means, standard deviations,
+* medians and ranges of every group can be read at any time.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.util.Arrays;
+import java.util.Locale;
+
+public class CometLiveStatistics {
+    private static final int N_COLUMNS = CometTable.N_COLUMNS;
+
+    private final CometTable table;
+    // Rows covered by the accumulators; rows added later trigger a rebuild
+    private int size = -1;
+
+    // Per column: the values in ascending order, and the rank of each row
+    private double[][] sorted;
+    private int[][] rank;
+    // Per status (VALID, INVALID_SIZE, OUTLIER) and column
+    private final int[] count = new int[3];
+    private final int[][] nanCount = new int[3][N_COLUMNS];
+    // Compensated sums of the values, and of the values and their squares
+    // around a shift close to the column mean, for the variance
+    private final double[][] sum = new double[3][N_COLUMNS];
+    private final double[][] sumComp = new double[3][N_COLUMNS];
+    private final double[][] shiftedSum = new double[3][N_COLUMNS];
+    private final double[][] shiftedSumSq = new double[3][N_COLUMNS];
+    private final double[] shift = new double[N_COLUMNS];
+    // Fenwick trees of the ranks of the non-NaN values, 1-based
+    private int[][][] tree;
+
+    public CometLiveStatistics(CometTable table){
+        this.table = table;
+    }
+
+    // Change the status of a row in the table and in the accumulators
+    public synchronized void setStatus(int row, int newStatus){
+        sync();
+        int oldStatus = table.getStatus(row);
+        table.setStatus(row, newStatus);
+        int from = statusIndex(oldStatus), to = statusIndex(newStatus);
+        if(from == to) return;
+        if(from >= 0) update(from, row, -1);
+        if(to >= 0) update(to, row, 1);
+    }
+
+    private static int statusIndex(int status){
+        if(status == Comet.VALID) return 0;
+        if(status == Comet.INVALID_SIZE) return 1;
+        if(status == Comet.OUTLIER) return 2;
+        return -1;
+    }
+
+    // Status indices belonging to a CometStatistics group
+    private static int[] groupStatuses(int group){
+        switch(group){
+            case CometStatistics.NORMAL: return new int[]{0};
+            case CometStatistics.NORMAL_OUTLIER: return new int[]{0, 2};
+            case CometStatistics.NORMAL_INVALID_SIZE: return new int[]{0, 1};
+            default: return new int[]{0, 1, 2};
+        }
+    }
+
+    // Rebuild the accumulators if rows were added since the last call
+    private void sync(){
+        int n = table.size();
+        if(n == size) return;
+        size = n;
+        byte[] status = table.getStatusColumn();
+        sorted = new double[N_COLUMNS][];
+        rank = new int[N_COLUMNS][n];
+        tree = new int[3][N_COLUMNS][n + 1];
+        Arrays.fill(count, 0);
+        for(int s=0; s<3; s++){
+            Arrays.fill(nanCount[s], 0);
+            Arrays.fill(sum[s], 0.0);
+            Arrays.fill(sumComp[s], 0.0);
+            Arrays.fill(shiftedSum[s], 0.0);
+            Arrays.fill(shiftedSumSq[s], 0.0);
+        }
+
+        Integer[] order = new Integer[n];
+        for(int c=0; c<N_COLUMNS; c++){
+            final double[] v = table.getColumn(c);
+            for(int row=0; row<n; row++) order[row] = row;
+            Arrays.sort(order, (a, b) -> Double.compare(v[a], v[b]));
+            sorted[c] = new double[n];
+            double total = 0.0;
+            int numbers = 0;
+            for(int r=0; r<n; r++){
+                int row = order[r];
+                sorted[c][r] = v[row];
+                rank[c][row] = r;
+                if(v[row] == v[row]){
+                    total += v[row];
+                    numbers++;
+                }
+            }
+            shift[c] = (numbers > 0) ? total / numbers : 0.0;
+        }
+
+        for(int row=0; row<n; row++){
+            int s = statusIndex(status[row]);
+            if(s < 0) continue;
+            count[s]++;
+            for(int c=0; c<N_COLUMNS; c++){
+                double v = sorted[c][rank[c][row]];
+                if(v != v){
+                    nanCount[s][c]++;
+                    continue;
+                }
+                addToSums(s, c, v, 1);
+                tree[s][c][rank[c][row] + 1]++;
+            }
+        }
+        // Turn the counts into Fenwick trees in linear time
+        for(int s=0; s<3; s++){
+            for(int c=0; c<N_COLUMNS; c++){
+                int[] t = tree[s][c];
+                for(int i=1; i<=n; i++){
+                    int parent = i + (i & -i);
+                    if(parent <= n) t[parent] += t[i];
+                }
+            }
+        }
+    }
+
+    private void update(int s, int row, int delta){
+        count[s] += delta;
+        for(int c=0; c<N_COLUMNS; c++){
+            int r = rank[c][row];
+            double v = sorted[c][r];
+            if(v != v){
+                nanCount[s][c] += delta;
+                continue;
+            }
+            addToSums(s, c, v, delta);
+            int[] t = tree[s][c];
+            for(int i=r+1; i<=size; i+=i & -i){
+                t[i] += delta;
+            }
+        }
+    }
+
+    private void addToSums(int s, int c, double v, int sign){
+        // Neumaier summation, so adding and removing a comet leaves no drift
+        double x = sign * v;
+        double t = sum[s][c] + x;
+        if(Math.abs(sum[s][c]) >= Math.abs(x)) sumComp[s][c] += (sum[s][c] - t) + x;
+        else sumComp[s][c] += (x - t) + sum[s][c];
+        sum[s][c] = t;
+        double d = v - shift[c];
+        shiftedSum[s][c] += sign * d;
+        shiftedSumSq[s][c] += sign * d * d;
+    }
+
+    // k-th smallest (0-based) non-NaN value of a column over the given statuses
+    private double kth(int[] statuses, int c, int k){
+        int n = size;
+        int pos = 0, below = 0;
+        for(int step=Integer.highestOneBit(Math.max(n, 1)); step>0; step>>=1){
+            int next = pos + step;
+            if(next > n) continue;
+            int inStep = 0;
+            for(int s : statuses) inStep += tree[s][c][next];
+            if(below + inStep <= k){
+                pos = next;
+                below += inStep;
+            }
+        }
+        return sorted[c][pos];
+    }
+
+    public synchronized int getCount(int group){
+        sync();
+        int n = 0;
+        for(int s : groupStatuses(group)) n += count[s];
+        return n;
+    }
+
+    public synchronized double getMean(int group, int column){
+        sync();
+        int n = 0, nan = 0;
+        double total = 0.0, comp = 0.0;
+        for(int s : groupStatuses(group)){
+            n += count[s];
+            nan += nanCount[s][column];
+            total += sum[s][column];
+            comp += sumComp[s][column];
+        }
+        if(n == 0 || nan > 0) return Double.NaN;
+        return (total + comp) / n;
+    }
+
+    public synchronized double getStddev(int group, int column){
+        sync();
+        int n = 0, nan = 0;
+        double s1 = 0.0, s2 = 0.0;
+        for(int s : groupStatuses(group)){
+            n += count[s];
+            nan += nanCount[s][column];
+            s1 += shiftedSum[s][column];
+            s2 += shiftedSumSq[s][column];
+        }
+        if(n == 0) return Double.NaN;
+        if(n < 2) return 0.0;
+        if(nan > 0) return Double.NaN;
+        return Math.sqrt(Math.max(0.0, (s2 - s1*s1/n) / (n - 1)));
+    }
+
+    // NaNs count as the largest values, as in CometStatistics
+    public synchronized double getMedian(int group, int column){
+        sync();
+        int[] statuses = groupStatuses(group);
+        int n = 0, numbers = 0;
+        for(int s : statuses){
+            n += count[s];
+            numbers += count[s] - nanCount[s][column];
+        }
+        if(n == 0) return Double.NaN;
+        int k = (n - 1) / 2;
+        double lower = (k < numbers) ? kth(statuses, column, k) : Double.NaN;
+        if(n % 2 == 1) return lower;
+        double upper = (k + 1 < numbers) ? kth(statuses, column, k + 1) : Double.NaN;
+        return (lower + upper) / 2.0;
+    }
+
+    public synchronized double getMin(int group, int column){
+        sync();
+        int[] statuses = groupStatuses(group);
+        int numbers = 0;
+        for(int s : statuses) numbers += count[s] - nanCount[s][column];
+        return (numbers > 0) ? kth(statuses, column, 0) : Double.NaN;
+    }
+
+    public synchronized double getMax(int group, int column){
+        sync();
+        int[] statuses = groupStatuses(group);
+        int numbers = 0, nan = 0;
+        for(int s : statuses){
+            numbers += count[s] - nanCount[s][column];
+            nan += nanCount[s][column];
+        }
+        if(numbers == 0 || nan > 0) return Double.NaN;
+        return kth(statuses, column, numbers - 1);
+    }
+
+    // The statistics rows of all groups for the output files. They are
+    // computed by CometStatistics over the current statuses, so a file
+    // rewritten after review matches what a run with those statuses writes
+    // to the last digit; the running sums serve the review window only.
+    public synchronized String getStatisticsString(String sep){
+        return new CometStatistics(table).getStatisticsString(sep);
+    }
+
+    // Short summary of the tail measurements of each group for the review window
+    public synchronized String getSummary(){
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-20s %6s %17s %17s %17s%n", "Group (mean/median)", "N",
+                                "TailDNA%", "TailMoment", "TailOliveMoment"));
+        int[] columns = {CometTable.TAIL_DNA_PERCENT, CometTable.TAIL_MOMENT,
+                         CometTable.TAIL_OLIVE_MOMENT};
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            sb.append(String.format(Locale.ROOT, "%-20s %6d", CometStatistics.getGroupName(g), getCount(g)));
+            for(int c : columns){
+                sb.append(String.format(Locale.ROOT, " %8.2f/%8.2f", getMean(g, c), getMedian(g, c)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
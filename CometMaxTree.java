@@ -0,0 +1,177 @@
+/**
+* CometMaxTree.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometMaxTree.java is the max-tree of an 8-bit image: every connected
+* component of the pixels at or above some level is a node, and the
+* components at the next higher levels inside it are its children. It
+* answers "what does this particle become at a higher threshold" without
+* thresholding the image again. The tree is built once, in near-linear
+* time, with a union-find over the pixels sorted by decreasing value
+* (Berger et al., ICIP 2007). A node is named by its canonical pixel,
+* the last pixel of the node's level that joined it; other pixels point
+* to the canonical pixel of their node. Pixels are 8-connected, as the
+* particle analyzer traces them. Only the pixels at or above a lowest
+* level enter the tree, which makes it a forest with one root for each
+* component at that level; a comet search never looks below its
+* threshold, and the background is most of an image.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.util.Arrays;
+
+public final class CometMaxTree {
+    private final int width, height;
+    // The pixels are read, not copied, and must not change while the tree is used
+    private final byte[] pixels;
+    private final int[] parent;
+    // Pixels of a node and of all its children, set at canonical pixels
+    private final int[] area;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+
+    // Tree of the pixels at or above minLevel
+    public CometMaxTree(byte[] pixels, int width, int height, int minLevel){
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        int n = width*height;
+        minLevel = Math.max(minLevel, 0);
+
+        // Pixels of the tree by decreasing value, in raster order within a value
+        int[] start = new int[257];
+        for(int p=0; p<n; p++) start[256 - (pixels[p] & 0xff)]++;
+        for(int v=0; v<256; v++) start[v + 1] += start[v];
+        int m = start[256 - minLevel];
+        int[] sorted = new int[m];
+        for(int p=0; p<n; p++){
+            int v = pixels[p] & 0xff;
+            if(v >= minLevel) sorted[start[255 - v]++] = p;
+        }
+
+        // Union-find: each pixel adopts the roots of the brighter or equal
+        // neighbors processed before it; -1 marks pixels not yet processed.
+        // Pixels below minLevel are their own parents and stay out of it.
+        parent = new int[n];
+        for(int p=0; p<n; p++) parent[p] = p;
+        int[] zpar = new int[n];
+        Arrays.fill(zpar, -1);
+        for(int i=0; i<m; i++){
+            int p = sorted[i];
+            parent[p] = p;
+            zpar[p] = p;
+            int x = p % width, y = p / width;
+            for(int yy=Math.max(y - 1, 0); yy<=Math.min(y + 1, height - 1); yy++){
+                for(int xx=Math.max(x - 1, 0); xx<=Math.min(x + 1, width - 1); xx++){
+                    int q = yy*width + xx;
+                    if(zpar[q] < 0) continue;
+                    int r = findRoot(zpar, q);
+                    if(r != p){
+                        parent[r] = p;
+                        zpar[r] = p;
+                    }
+                }
+            }
+        }
+
+        // Point every pixel at the canonical pixel of its node, from the root down
+        for(int i=m-1; i>=0; i--){
+            int p = sorted[i];
+            int q = parent[p];
+            if(pixels[parent[q]] == pixels[q]) parent[p] = parent[q];
+        }
+
+        // Parents come later in the sorted order than their pixels and children
+        area = zpar;
+        Arrays.fill(area, 1);
+        for(int i=0; i<m; i++){
+            int p = sorted[i];
+            if(parent[p] != p) area[parent[p]] += area[p];
+        }
+
+        firstChild = new int[n];
+        Arrays.fill(firstChild, -1);
+        nextSibling = new int[n];
+        for(int i=0; i<m; i++){
+            int p = sorted[i];
+            int q = parent[p];
+            if(q != p && pixels[q] != pixels[p]){
+                nextSibling[p] = firstChild[q];
+                firstChild[q] = p;
+            }
+        }
+    }
+
+    private static int findRoot(int[] zpar, int p){
+        while(zpar[p] != p){
+            zpar[p] = zpar[zpar[p]];
+            p = zpar[p];
+        }
+        return p;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    // Node of pixel p, the component at its own value
+    public int canonical(int p){
+        int q = parent[p];
+        return (pixels[q] == pixels[p]) ? q : p;
+    }
+
+    public int level(int node){
+        return pixels[node] & 0xff;
+    }
+
+    public int area(int node){
+        return area[node];
+    }
+
+    // First child of a node and the next one after a child, or -1
+    public int firstChild(int node){
+        return firstChild[node];
+    }
+
+    public int nextSibling(int child){
+        return nextSibling[child];
+    }
+
+    // The component of pixels at or above level that holds pixel p, or -1
+    // if p itself is below level; level must not be below minLevel
+    public int nodeAt(int p, int level){
+        int node = canonical(p);
+        if(level(node) < level) return -1;
+        while(parent[node] != node && level(parent[node]) >= level) node = parent[node];
+        return node;
+    }
+
+    // Whether pixel p belongs to the component of node
+    public boolean contains(int node, int p){
+        int n = canonical(p);
+        int level = level(node);
+        while(level(n) > level && parent[n] != n) n = parent[n];
+        return n == node;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+* CometMetrics.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometMetrics.java records where the time of an analysis goes.
+* For each pipeline stage it counts calls, wall time and the bytes
+* allocated by the threads that ran the stage. It also counts the
+* comets found and their status, and how many of the buffers taken
+* from a CometArena were reused. Metrics are kept per image and
+* merged per batch, and can be written as a JSON run report.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CometMetrics {
+    // Stage names, in pipeline order
+    public static final String OPEN_IMAGE = "open_image";
+    public static final String GRAYSCALE = "grayscale";
+    public static final String MEDIAN = "median";
+    public static final String ROLLING_BALL = "rolling_ball";
+    public static final String PREPROCESS_CACHE = "preprocess_cache";
+    public static final String AUTO_THRESHOLD = "auto_threshold";
+    public static final String OPEN = "open_ntimes";
+    public static final String SPLIT = "split_comets";
+    public static final String PARTICLES = "particle_analyzer";
+    public static final String COMET_PARAMS = "comet_params";
+    public static final String MEASURE = "measure_comets";
+    public static final String MEASURE_COMET = "measure_comet";
+    public static final String OUTPUT_IMAGE = "output_image";
+    public static final String CSV = "csv";
+    // Buffer pools of CometArena
+    public static final String PIXEL_BUFFERS = "pixel_buffers";
+    public static final String SCRATCH_ARRAYS = "scratch_arrays";
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private final String name;
+    private final LinkedHashMap<String,Stage> stages;
+    private final ArrayList<CometMetrics> images;
+    private int cometsDetected;
+    private final int[] statusCounts;
+    private long wallNanos;
+    // Per buffer pool: {requests, reused}
+    private final LinkedHashMap<String,long[]> reuse;
+
+    public CometMetrics(String name){
+        this.name = name;
+        stages = new LinkedHashMap<String,Stage>();
+        reuse = new LinkedHashMap<String,long[]>();
+        images = new ArrayList<CometMetrics>();
+        statusCounts = new int[STATUS_NAMES.length];
+    }
+
+    // Bytes allocated so far by the current thread, or 0 if the JVM can't tell
+    public static long allocatedBytes(){
+        if(threadBean instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threadBean;
+            if(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()){
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    // Record one call of a stage that started at startNanos/startBytes on this thread
+    public void record(String stage, long startNanos, long startBytes){
+        add(stage, 1, System.nanoTime() - startNanos, allocatedBytes() - startBytes);
+    }
+
+    public synchronized void add(String stage, long calls, long nanos, long bytes){
+        Stage s = stages.get(stage);
+        if(s == null){
+            s = new Stage();
+            stages.put(stage, s);
+        }
+        s.calls += calls;
+        s.nanos += nanos;
+        s.bytes += bytes;
+    }
+
+    // Count a buffer request of a pool and whether it was served by reuse
+    public synchronized void countReuse(String pool, long requests, long reused){
+        long[] r = reuse.get(pool);
+        if(r == null){
+            r = new long[2];
+            reuse.put(pool, r);
+        }
+        r[0] += requests;
+        r[1] += reused;
+    }
+
+    // {requests, reused} of a buffer pool, zeros if it was never asked
+    public synchronized long[] getReuse(String pool){
+        long[] r = reuse.get(pool);
+        return (r == null) ? new long[2] : r.clone();
+    }
+
+    public synchronized void countComets(Comet[] comets){
+        if(comets == null) return;
+        for(Comet comet : comets){
+            cometsDetected++;
+            for(int i=0; i<STATUS_FLAGS.length; i++){
+                if(comet.status == STATUS_FLAGS[i]) statusCounts[i]++;
+            }
+        }
+    }
+
+    public synchronized void setWallNanos(long wallNanos){
+        this.wallNanos = wallNanos;
+    }
+
+    // Add the metrics of one image to this batch
+    public synchronized void addImage(CometMetrics image){
+        images.add(image);
+        synchronized(image){
+            for(Map.Entry<String,Stage> e : image.stages.entrySet()){
+                add(e.getKey(), e.getValue().calls, e.getValue().nanos, e.getValue().bytes);
+            }
+            for(Map.Entry<String,long[]> e : image.reuse.entrySet()){
+                countReuse(e.getKey(), e.getValue()[0], e.getValue()[1]);
+            }
+            cometsDetected += image.cometsDetected;
+            for(int i=0; i<statusCounts.length; i++){
+                statusCounts[i] += image.statusCounts[i];
+            }
+        }
+    }
+
+    public synchronized String getSummary(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Run report: ").append(name).append(", ")
+          .append(images.size()).append(" images, ")
+          .append(cometsDetected).append(" comets, ")
+          .append(IJ.d2s(wallNanos/1e9, 2)).append(" s\n");
+        for(Map.Entry<String,Stage> e : stages.entrySet()){
+            Stage s = e.getValue();
+            sb.append("  ").append(e.getKey()).append(": ")
+              .append(s.calls).append(" calls, ")
+              .append(IJ.d2s(s.nanos/1e6, 1)).append(" ms, ")
+              .append(IJ.d2s(s.bytes/1048576.0, 1)).append(" MB\n");
+        }
+        for(Map.Entry<String,long[]> e : reuse.entrySet()){
+            long[] r = e.getValue();
+            sb.append("  ").append(e.getKey()).append(": ")
+              .append(r[1]).append(" of ").append(r[0]).append(" reused (")
+              .append(IJ.d2s(r[0] == 0 ? 0 : 100.0*r[1]/r[0], 1)).append("%)\n");
+        }
+        sb.append("  comets:");
+        for(int i=0; i<STATUS_NAMES.length; i++){
+            sb.append(' ').append(STATUS_NAMES[i]).append('=').append(statusCounts[i]);
+        }
+        return sb.toString();
+    }
+
+    public void printReport(String outPath){
+        try {
+            PrintWriter out = new PrintWriter(outPath);
+            out.println(toJson(""));
+            out.close();
+        }
+        catch(IOException ex){
+            IJ.log(ex.toString());
+        }
+    }
+
+    private synchronized String toJson(String indent){
+        String in = indent + "  ";
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(in).append("\"name\": ").append(quote(name)).append(",\n");
+        sb.append(in).append("\"wallMs\": ").append(wallNanos/1e6).append(",\n");
+        sb.append(in).append("\"cometsDetected\": ").append(cometsDetected).append(",\n");
+        sb.append(in).append("\"cometsByStatus\": {");
+        for(int i=0; i<STATUS_NAMES.length; i++){
+            if(i > 0) sb.append(", ");
+            sb.append(quote(STATUS_NAMES[i])).append(": ").append(statusCounts[i]);
+        }
+        sb.append("},\n");
+        sb.append(in).append("\"stages\": {");
+        boolean first = true;
+        for(Map.Entry<String,Stage> e : stages.entrySet()){
+            Stage s = e.getValue();
+            sb.append(first ? "\n" : ",\n");
+            sb.append(in).append("  ").append(quote(e.getKey()))
+              .append(": {\"calls\": ").append(s.calls)
+              .append(", \"ms\": ").append(s.nanos/1e6)
+              .append(", \"allocatedBytes\": ").append(s.bytes).append("}");
+            first = false;
+        }
+        sb.append(first ? "}" : "\n" + in + "}");
+        if(!reuse.isEmpty()){
+            sb.append(",\n").append(in).append("\"reuse\": {");
+            first = true;
+            for(Map.Entry<String,long[]> e : reuse.entrySet()){
+                sb.append(first ? "" : ", ").append(quote(e.getKey()))
+                  .append(": {\"requests\": ").append(e.getValue()[0])
+                  .append(", \"reused\": ").append(e.getValue()[1]).append("}");
+                first = false;
+            }
+            sb.append("}");
+        }
+        if(!images.isEmpty()){
+            sb.append(",\n").append(in).append("\"images\": [");
+            for(int i=0; i<images.size(); i++){
+                sb.append(i == 0 ? "\n" : ",\n").append(in).append("  ");
+                sb.append(images.get(i).toJson(in + "  "));
+            }
+            sb.append("\n").append(in).append("]");
+        }
+        sb.append("\n").append(indent).append("}");
+        return sb.toString();
+    }
+
+    private static String quote(String s){
+        StringBuilder sb = new StringBuilder("\"");
+        for(int i=0; i<s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') sb.append('\\').append(c);
+            else if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static final int[] STATUS_FLAGS = {Comet.VALID, Comet.INVALID_SIZE,
+                                               Comet.INVALID_NO_HEAD, Comet.OUTLIER,
+                                               Comet.DELETED};
+    private static final String[] STATUS_NAMES = {"normal", "size_invalid", "no_head",
+                                                  "outlier", "deleted"};
+
+    private static class Stage {
+        long calls;
+        long nanos;
+        long bytes;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+* CometOutput.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometOutput.java draws the output images and writes the CSV
+* results. It has no GUI state, so it is shared by the OpenComet
+* window and by the headless batch runner.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+
+import java.io.*;
+import java.awt.*;
+
+public class CometOutput {
+    static final Color cometValidColor = Color.red;
+    static final Color cometInvalidColor = Color.gray;
+    static final Color cometOutlierColor = Color.orange;
+    static final Color cometColor = Color.yellow;
+    static final Color headColor = Color.green;
+    static final Color tailColor = Color.blue;
+
+    private CometOutput(){}
+
+    // Draw the comets as an overlay on an RGB copy of the image.
+    // Does not touch any window, so it can run on batch worker threads.
+    public static ImagePlus makeOutputImage(Comet[] cometsOut, ImagePlus imp, String imageKey){
+        ImageProcessor ip = imp.getProcessor();
+        int imgType = imp.getType();
+        ColorProcessor ip_out = null;
+        if(imgType == ImagePlus.GRAY8){
+            TypeConverter t = new TypeConverter(ip,false);
+            ip_out = (ColorProcessor)t.convertToRGB();
+        }
+        else if (imgType == ImagePlus.GRAY16 || imgType == ImagePlus.GRAY32){
+            ImageProcessor ip_temp = ip.convertToByte(true); 
+            TypeConverter t = new TypeConverter(ip_temp,false);
+            ip_out = (ColorProcessor)t.convertToRGB();
+        }
+        else if(imgType == ImagePlus.COLOR_RGB){
+            ip_out = (ColorProcessor)(ip.duplicate());
+        }
+        else {
+            IJ.log("Unhandled image type: "+imgType);
+            return null;  // Exit if we can't handle the image type
+        }
+
+        String imgOutFileName = imageKey +"_out.tif";
+        ImagePlus img_out = new ImagePlus(imgOutFileName,ip_out);
+
+        if(cometsOut != null && cometsOut.length > 0){
+            // Check each comet's ROIs before storing
+            for(int i = 0; i < cometsOut.length; i++) {
+                if(cometsOut[i] == null) continue;
+                
+                // For INVALID_NO_HEAD comets, ensure ROIs are null
+                if(cometsOut[i].status == Comet.INVALID_NO_HEAD) {
+                    cometsOut[i].headRoi = null;
+                    continue;
+                }
+            }
+
+            for(int j=0; j<cometsOut.length; j++){
+                if(cometsOut[j] == null) continue;
+                
+                // Skip invalid comets
+                if(cometsOut[j].status == Comet.INVALID_NO_HEAD){
+                    continue;
+                }
+                if(cometsOut[j].status == Comet.VALID && cometsOut[j].cometProfile != null) {
+                    printArray(cometsOut[j].cometProfile);
+                }
+            }
+
+            Overlay cometOverlay = new Overlay();
+            drawComets(ip_out, cometOverlay, cometsOut);
+            img_out.setOverlay(cometOverlay);
+        } else {
+            IJ.log("No comets in image stored.");
+        }
+        return img_out;
+    }
+
+    // Save the output image in outDirPath, flattening the overlay if there is one
+    public static void saveOutputImage(ImagePlus img_out, String outDirPath){
+        if(img_out.getOverlay() != null){
+            ImagePlus img_out_save = img_out.flatten();
+            IJ.save(img_out_save, outDirPath + img_out.getTitle());
+        }
+        else {
+            IJ.save(img_out, outDirPath + img_out.getTitle());
+        }
+    }
+
+    private static void drawComets(ImageProcessor ip, Overlay overlay, Comet[] comets){
+        for(int i=0;i<comets.length;i++){
+            if(comets[i].status == Comet.INVALID_NO_HEAD){
+                continue;
+            }
+            if(comets[i].status == Comet.OUTLIER){
+                if(comets[i].cometRoi != null) {
+                    comets[i].cometRoi.setStrokeColor(cometOutlierColor);
+                    overlay.add(comets[i].cometRoi);
+                }
+                if(comets[i].headRoi != null) {
+                    comets[i].headRoi.setStrokeColor(cometOutlierColor);
+                    overlay.add(comets[i].headRoi);
+                }
+
+                // Add ID text to overlay with larger font and better positioning
+                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
+                                          comets[i].y + comets[i].height/2, 
+                                          "" + comets[i].id,
+                                          new Font("Arial", Font.BOLD, 24));
+                textRoi.setStrokeColor(cometOutlierColor);
+                overlay.add(textRoi);
+                comets[i].labelRoi = textRoi;
+
+                // Add profile plot for outliers only if they have valid profiles
+                if (comets[i].cometProfile != null && comets[i].profileMax > 0) {
+                    ImageProcessor ipProfile = getCometProfilePlot(comets[i]);
+                    ip.copyBits(ipProfile, comets[i].x,
+                            comets[i].y,Blitter.COPY_TRANSPARENT);
+                }
+            }
+            else if(comets[i].status == Comet.INVALID_SIZE){
+                if(comets[i].cometRoi != null) {
+                    comets[i].cometRoi.setStrokeColor(cometInvalidColor);
+                    overlay.add(comets[i].cometRoi);
+                }
+                if(comets[i].headRoi != null) {
+                    comets[i].headRoi.setStrokeColor(cometInvalidColor);
+                    overlay.add(comets[i].headRoi);
+                }
+
+                // Add ID text to overlay with larger font and better positioning
+                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
+                                          comets[i].y + comets[i].height/2, 
+                                          ""+comets[i].id,
+                                          new Font("Arial", Font.BOLD, 24));
+                textRoi.setStrokeColor(cometInvalidColor);
+                overlay.add(textRoi);
+                comets[i].labelRoi = textRoi;
+            }
+            else if(comets[i].status == Comet.VALID){
+                if(comets[i].cometRoi != null) {
+                    comets[i].cometRoi.setStrokeColor(cometValidColor);
+                    overlay.add(comets[i].cometRoi);
+                }
+                if(comets[i].headRoi != null) {
+                    comets[i].headRoi.setStrokeColor(cometValidColor);
+                    overlay.add(comets[i].headRoi);
+                }
+
+                // Add ID text to overlay with larger font and better positioning
+                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
+                                          comets[i].y + comets[i].height/2, 
+                                          ""+comets[i].id,
+                                          new Font("Arial", Font.BOLD, 24));
+                textRoi.setStrokeColor(cometValidColor);
+                overlay.add(textRoi);
+                comets[i].labelRoi = textRoi;
+
+                // Add profile plot for valid comets only if they have valid profiles
+                if (comets[i].cometProfile != null && comets[i].profileMax > 0) {
+                    ImageProcessor ipProfile = getCometProfilePlot(comets[i]);
+                    ip.copyBits(ipProfile, comets[i].x,
+                            comets[i].y,Blitter.COPY_TRANSPARENT);
+                }
+            }
+        }
+    }
+
+    private static ImageProcessor getCometProfilePlot(Comet comet){
+        ImageProcessor ip = new ColorProcessor(comet.width, comet.height);
+        ip.invert();
+
+        if (comet.profileMax > 0) {
+            double heightStep = comet.height / comet.profileMax;
+            
+            // Only draw profiles if they exist
+            if (comet.cometProfile != null) {
+                drawProfilePlot(ip, comet.cometProfile, cometColor, heightStep);
+            }
+            if (comet.headProfile != null) {
+                drawProfilePlot(ip, comet.headProfile, headColor, heightStep);
+            }
+            if (comet.tailProfile != null) {
+                drawProfilePlot(ip, comet.tailProfile, tailColor, heightStep);
+            }
+        }
+
+        return ip;
+    }
+
+    private static void drawProfilePlot(ImageProcessor ip, double[] profile,
+                                 Color col, double heightStep){
+        int height = ip.getHeight();
+        int width = ip.getWidth();
+        int x1,x2,y1,y2;
+        ip.setColor(col);
+        for(int x=0;x<width-1;x++){
+            x1 = x; x2 = x+1;
+            y1 = (int)((height - 1) - profile[x]*heightStep);
+            y2 = (int)((height - 1) - profile[x+1]*heightStep);
+            ip.drawLine(x1,y1,x2,y2);
+            }
+        }
+
+    // Write the measurements of all comets and the summary statistics as CSV
+    public static void printComets(CometResultStore Comets, String outPath){
+        printComets(Comets, outPath, null);
+    }
+
+    // Same, taking the statistics from liveStats if given instead of recomputing them
+    public static void printComets(CometResultStore Comets, String outPath,
+                                   CometLiveStatistics liveStats){
+        try {
+            CometCsvWriter writer = new CometCsvWriter(outPath);
+            for (CometResultStore.Entry element : Comets.entries()) {
+                writer.writeEntry(Comets.getTable(), element);
+            }
+            if(liveStats != null) writer.writeStatistics(liveStats);
+            else writer.writeStatistics(Comets.getTable());
+            writer.close();
+        }
+        catch (Exception ex) {
+            IJ.log(ex.toString());
+        }
+    }
+
+    private static void printArray(double[] arr){
+        String s = "";
+        for(int i=0;i<arr.length;i++){
+            s += arr[i];
+            if(i<arr.length-1) s+=",";
+            }
+        IJ.log(s);
+        }
+}
@@ -0,0 +1,213 @@
+/**
+* CometPreprocessCache.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometPreprocessCache.java keeps background corrected 8-bit images on
+* disk, so that re-running a plate with another threshold or head
+* finding method skips the median filter and the rolling ball. An entry
+* is keyed by a SHA-256 hash of the grayscale image and of the
+* preprocessing parameters, so a changed image or a changed correction
+* never hits. The least recently used entries are deleted when the
+* directory grows beyond its size limit; caches of the same directory
+* share one lock for that, so concurrent runs don't evict at once. The
+* cache is only an
+* optimization: any error is logged and the image is corrected again.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+import ij.process.ByteProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CometPreprocessCache {
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+    private static final String SUFFIX = ".ocpc";
+    private static final int MAGIC = 0x4f435043; // "OCPC"
+    private static final int VERSION = 1;
+
+    // Eviction lock of each cache directory, and the default caches
+    private static final ConcurrentHashMap<String,Object> locks =
+        new ConcurrentHashMap<String,Object>();
+    private static final ConcurrentHashMap<String,CometPreprocessCache> defaults =
+        new ConcurrentHashMap<String,CometPreprocessCache>();
+
+    private final File dir;
+    private final long maxBytes;
+    private final Object evictLock;
+
+    public CometPreprocessCache(File dir, long maxBytes){
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        evictLock = locks.computeIfAbsent(dir.getAbsolutePath(), k -> new Object());
+    }
+
+    // Cache in the ImageJ temporary directory, the same instance on every call
+    public static CometPreprocessCache getDefault(){
+        File dir = new File(IJ.getDirectory("temp"), "OpenComet-cache");
+        return defaults.computeIfAbsent(dir.getAbsolutePath(),
+                                        k -> new CometPreprocessCache(dir, DEFAULT_MAX_BYTES));
+    }
+
+    public File getDirectory(){
+        return dir;
+    }
+
+    // Key of an image before preprocessing and the parameters applied to it
+    public String key(ByteProcessor ip, String params){
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+        md.update(params.getBytes(StandardCharsets.UTF_8));
+        int w = ip.getWidth(), h = ip.getHeight();
+        md.update(new byte[]{(byte)(w >>> 24), (byte)(w >>> 16), (byte)(w >>> 8), (byte)w,
+                             (byte)(h >>> 24), (byte)(h >>> 16), (byte)(h >>> 8), (byte)h});
+        md.update((byte[])ip.getPixels(), 0, w*h);
+        StringBuilder sb = new StringBuilder();
+        for(byte b : md.digest()){
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // Read the preprocessed pixels of key into ip; false if they are not
+    // cached, in which case the pixels of ip may have been overwritten
+    public boolean get(String key, ByteProcessor ip){
+        File file = new File(dir, key + SUFFIX);
+        if(!file.isFile()) return false;
+        int w = ip.getWidth(), h = ip.getHeight();
+        try {
+            if(file.length() != 16 + (long)w*h){
+                throw new IOException("wrong size");
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION ||
+                   in.readInt() != w || in.readInt() != h){
+                    throw new IOException("not a cache entry for this image");
+                }
+                in.readFully((byte[])ip.getPixels(), 0, w*h);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException ex){
+            IJ.log("Preprocessing cache: ignoring " + file.getName() + ": " + ex.getMessage());
+            file.delete();
+            return false;
+        }
+        // The modification time orders the entries for eviction
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    // Store the preprocessed pixels of key, then evict old entries
+    public void put(String key, ByteProcessor ip){
+        int w = ip.getWidth(), h = ip.getHeight();
+        try {
+            if(!dir.isDirectory() && !dir.mkdirs()){
+                throw new IOException("cannot create " + dir);
+            }
+            // Written under a temporary name, so readers never see half an entry
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(w);
+                    out.writeInt(h);
+                    out.write((byte[])ip.getPixels(), 0, w*h);
+                }
+                finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), new File(dir, key + SUFFIX).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        catch(IOException ex){
+            IJ.log("Preprocessing cache: cannot store " + key + ": " + ex.getMessage());
+            return;
+        }
+        evict();
+    }
+
+    // Delete the least recently used entries until the cache fits its limit
+    private void evict(){
+        synchronized(evictLock){
+            evictLocked();
+        }
+    }
+
+    private void evictLocked(){
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        long total = 0;
+        int n = 0;
+        for(File f : files){
+            if(f.getName().endsWith(SUFFIX)){
+                files[n++] = f;
+                total += f.length();
+            }
+        }
+        if(total <= maxBytes) return;
+        File[] entries = Arrays.copyOf(files, n);
+        final long[] modified = new long[n];
+        Integer[] order = new Integer[n];
+        for(int i=0; i<n; i++){
+            modified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for(int i=0; i<n && total > maxBytes; i++){
+            File f = entries[order[i]];
+            long length = f.length();
+            if(f.delete()) total -= length;
+        }
+    }
+}
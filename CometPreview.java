@@ -0,0 +1,183 @@
+/**
+* CometPreview.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometPreview.java shows the comets that a run would find in an open
+* image as an overlay, while the threshold method, the background
+* correction and comet splitting are tuned. It keeps every stage of the
+* search: the grayscale image, the background corrected image (with and
+* without correction), the threshold and binary mask, the outlines and
+* the comets with their status. A changed setting redoes only the
+* stages after it, so a new threshold method costs a binarization and a
+* particle search instead of a full run. The work runs on one thread of
+* its own; settings changed while it runs are merged into the next
+* update. No file is written. The overlay the image had when the
+* preview started is put back when it stops.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+
+import java.awt.Color;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class CometPreview {
+    private final ImagePlus imp;
+    private final CometMetrics metrics = new CometMetrics("preview");
+    private final ExecutorService worker;
+    // Overlay of the image before the preview, restored by stop
+    private final Overlay savedOverlay;
+
+    // Settings of the next update, null when there is none
+    private String pendingMethod;
+    private boolean pendingBgCorrect, pendingSplit;
+    private CometPreprocessCache pendingCache;
+    private boolean stopped;
+
+    // Stages, each with the settings it was made with. Only the worker
+    // thread reads and writes them.
+    private ByteProcessor gray;
+    // Indexed by background correction off (0) and on (1)
+    private final ByteProcessor[] corrected = new ByteProcessor[2];
+    private String maskMethod;
+    private int maskBg = -1;
+    private int threshValue;
+    private ByteProcessor mask;
+    private Roi[] rois;
+    private Comet[] comets;
+    private boolean cometsSplit;
+
+    public CometPreview(ImagePlus imp){
+        this.imp = imp;
+        savedOverlay = imp.getOverlay();
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "OpenComet preview");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public ImagePlus getImage(){
+        return imp;
+    }
+
+    // Show the comets found with these settings. Returns at once; the
+    // overlay changes when the stages are done.
+    public synchronized void update(String thresholdMethod, boolean bgCorrect, boolean split,
+                                    CometPreprocessCache cache){
+        if(stopped) return;
+        boolean queued = (pendingMethod != null);
+        pendingMethod = thresholdMethod;
+        pendingBgCorrect = bgCorrect;
+        pendingSplit = split;
+        pendingCache = cache;
+        if(queued) return;
+        worker.execute(new Runnable(){
+            public void run(){
+                String method;
+                boolean bgCorrect, split;
+                CometPreprocessCache cache;
+                synchronized(CometPreview.this){
+                    if(stopped) return;
+                    method = pendingMethod;
+                    bgCorrect = pendingBgCorrect;
+                    split = pendingSplit;
+                    cache = pendingCache;
+                    pendingMethod = null;
+                }
+                try {
+                    compute(method, bgCorrect, split, cache);
+                }
+                catch(RuntimeException ex){
+                    IJ.log("Preview failed: " + ex);
+                }
+            }
+        });
+    }
+
+    // Put back the image's own overlay and drop the stages
+    public void stop(){
+        synchronized(this){
+            stopped = true;
+            imp.setOverlay(savedOverlay);
+        }
+        worker.shutdownNow();
+    }
+
+    private void compute(String method, boolean bgCorrect, boolean split,
+                         CometPreprocessCache cache){
+        long start = System.nanoTime();
+        CometAnalyzer analyzer = new CometAnalyzer();
+        analyzer.setThresholdMethod(method);
+        analyzer.setPreprocessCache(cache);
+        analyzer.setMetrics(metrics);
+        if(gray == null){
+            gray = analyzer.previewGrayscale(imp);
+        }
+        int bg = bgCorrect ? 1 : 0;
+        if(corrected[bg] == null){
+            corrected[bg] = bgCorrect ? analyzer.previewBackground(gray) : gray;
+        }
+        if(mask == null || maskBg != bg || !method.equals(maskMethod)){
+            threshValue = analyzer.previewThreshold(corrected[bg]);
+            mask = analyzer.previewMask(corrected[bg], threshValue);
+            rois = analyzer.previewRois(mask, threshValue);
+            maskMethod = method;
+            maskBg = bg;
+            comets = null;
+        }
+        if(comets == null || cometsSplit != split){
+            comets = analyzer.previewComets(rois, gray, corrected[bg], threshValue, split);
+            cometsSplit = split;
+        }
+        synchronized(this){
+            if(stopped) return;
+            imp.setOverlay(makeOverlay(comets));
+        }
+        int valid = 0;
+        for(Comet comet : comets){
+            if(comet.status == Comet.VALID) valid++;
+        }
+        IJ.showStatus("Preview: " + valid + " of " + comets.length + " comets valid, threshold " +
+                      threshValue + " (" + (System.nanoTime() - start)/1000000 + " ms)");
+    }
+
+    // Outlines in the colors of the output image
+    private static Overlay makeOverlay(Comet[] comets){
+        Overlay overlay = new Overlay();
+        for(Comet comet : comets){
+            Roi roi = (Roi)comet.cometRoi.clone();
+            Color color = (comet.status == Comet.VALID) ? CometOutput.cometValidColor :
+                          (comet.status == Comet.OUTLIER) ? CometOutput.cometOutlierColor :
+                          CometOutput.cometInvalidColor;
+            roi.setStrokeColor(color);
+            overlay.add(roi);
+        }
+        return overlay;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+* CometResultStore.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometResultStore.java holds the results of each analyzed image. The
+* measurements and status of every comet go into a CometTable when the
+* image is stored; the Comet objects, with their ROIs, are only kept
+* together with an output image while it is on screen for review.
+* Entries are iterated in input order, so the CSV output does not
+* depend on which worker finished first.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.ImagePlus;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class CometResultStore {
+    private final CometTable table;
+    private final ConcurrentSkipListMap<Integer,Entry> entries;
+    private final ConcurrentHashMap<ImagePlus,Entry> imageEntries;
+
+    public CometResultStore(){
+        table = new CometTable();
+        entries = new ConcurrentSkipListMap<Integer,Entry>();
+        imageEntries = new ConcurrentHashMap<ImagePlus,Entry>();
+    }
+
+    // Store the comets of one image; index is the position of the image in the input.
+    // The comets are only kept if an output image is given for review.
+    public Entry put(int index, String imageKey, ImagePlus image, Comet[] comets){
+        int firstRow = table.addImage(imageKey, comets);
+        Entry entry = new Entry(index, imageKey, image, (image == null) ? null : comets,
+                                (image == null) ? null : new CometGrid(comets),
+                                firstRow, comets.length);
+        entries.put(index, entry);
+        if(image != null){
+            imageEntries.put(image, entry);
+        }
+        return entry;
+    }
+
+    // Entry shown in the given output image, or null if the image is unknown
+    public Entry get(ImagePlus image){
+        return imageEntries.get(image);
+    }
+
+    // Forget the output image and the comets of an entry once it is closed;
+    // the measurements stay in the table
+    public void release(ImagePlus image){
+        Entry entry = imageEntries.remove(image);
+        if(entry == null) return;
+        entries.replace(entry.index, entry, new Entry(entry.index, entry.imageKey, null, null,
+                                                      null, entry.firstRow, entry.rowCount));
+    }
+
+    public CometTable getTable(){
+        return table;
+    }
+
+    // All entries in input order
+    public Collection<Entry> entries(){
+        return entries.values();
+    }
+
+    public int size(){
+        return entries.size();
+    }
+
+    public static class Entry {
+        public final int index;
+        public final String imageKey;
+        public final ImagePlus image;
+        // Shapes of the comets on screen, or null; status and measurements
+        // are read from the table, comets[i] being row firstRow + i
+        public final Comet[] comets;
+        // Index of the comets for hit-testing clicks, or null without comets
+        public final CometGrid grid;
+        public final int firstRow;
+        public final int rowCount;
+
+        Entry(int index, String imageKey, ImagePlus image, Comet[] comets, CometGrid grid,
+              int firstRow, int rowCount){
+            this.index = index;
+            this.imageKey = imageKey;
+            this.image = image;
+            this.comets = comets;
+            this.grid = grid;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+        }
+    }
+}
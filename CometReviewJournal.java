@@ -0,0 +1,108 @@
+/**
+* CometReviewJournal.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometReviewJournal.java records the status changes made by clicking
+* comets in the review window. Update Output appends the changes made
+* since the last update to <name>_review.csv and rewrites the small
+* <name>_statistics.csv, instead of writing every row again; the
+* journal is never rewritten, also not by a later review of the same
+* output, so it is an audit trail of the manual decisions. Compact Output writes the full CSV with the final statuses.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+public class CometReviewJournal {
+    private static final String SEP = ",";
+    private static final String HEADER = "Time,Image,ID,OldStatus,NewStatus";
+
+    private final String journalPath;
+    private final String statisticsPath;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    // Changes not yet written, as journal lines
+    private final ArrayList<String> pending = new ArrayList<String>();
+    private int written;
+
+    public CometReviewJournal(String journalPath, String statisticsPath){
+        this.journalPath = journalPath;
+        this.statisticsPath = statisticsPath;
+    }
+
+    public synchronized void record(String imageKey, int cometId, int oldStatus, int newStatus){
+        pending.add(timeFormat.format(new Date()) + SEP + escapeCsv(imageKey) + SEP + cometId +
+                    SEP + CometTable.getStatusName(oldStatus) +
+                    SEP + CometTable.getStatusName(newStatus));
+    }
+
+    public synchronized int getPendingCount(){
+        return pending.size();
+    }
+
+    // Number of changes written to the journal so far
+    public synchronized int getWrittenCount(){
+        return written;
+    }
+
+    public String getJournalPath(){
+        return journalPath;
+    }
+
+    // Append the pending changes to the journal and rewrite the statistics
+    // file, with a header naming its fields. A journal left by an earlier
+    // run is kept and appended to; the header is written only into a new
+    // or empty journal.
+    public synchronized void flush(CometLiveStatistics liveStats) throws IOException {
+        boolean isNew = (new File(journalPath).length() == 0);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(journalPath, true)));
+        if(isNew) out.println(HEADER);
+        for(String line : pending){
+            out.println(line);
+        }
+        out.close();
+        if(out.checkError()){
+            throw new IOException("could not write " + journalPath);
+        }
+        written += pending.size();
+        pending.clear();
+
+        PrintWriter stats = new PrintWriter(new BufferedWriter(new FileWriter(statisticsPath)));
+        stats.print(CometStatistics.getHeaderString(SEP));
+        stats.print(liveStats.getStatisticsString(SEP));
+        stats.close();
+        if(stats.checkError()){
+            throw new IOException("could not write " + statisticsPath);
+        }
+    }
+
+    private static String escapeCsv(String value){
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+* CometSketches.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometSketches.java holds one QuantileSketch of the tail DNA%, tail
+* moment and Olive moment for each status group of CometStatistics.
+* A batch run with quantiles=true writes them to <name>_sketches.txt
+* next to the CSV. Sketch files of several runs, plates or machines are
+* combined without the comet rows:
+*
+* java -cp ij.jar:OpenComet_v2.0.jar CometSketches run1_sketches.txt
+*     run2_sketches.txt out=all_sketches.txt
+*
+* prints the merged P5, P25, P75 and P95 of each group as CSV and,
+* with out=<file>, writes the merged sketches for later merges.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class CometSketches {
+    // Sketched measurements and their names in the sketch files
+    public static final int[] COLUMNS = {CometTable.TAIL_DNA_PERCENT, CometTable.TAIL_MOMENT,
+                                         CometTable.TAIL_OLIVE_MOMENT};
+    private static final String[] COLUMN_NAMES = {"TailDNA%", "TailMoment", "TailOliveMoment"};
+
+    public static final double[] QUANTILES = {0.05, 0.25, 0.75, 0.95};
+    public static final String[] QUANTILE_NAMES = {"P5", "P25", "P75", "P95"};
+
+    private static final String FILE_HEADER = "# OpenComet quantile sketches v1";
+
+    // [group][index in COLUMNS]
+    private final QuantileSketch[][] sketches;
+
+    public CometSketches(){
+        sketches = new QuantileSketch[CometStatistics.N_GROUPS][COLUMNS.length];
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            for(int i=0; i<COLUMNS.length; i++){
+                sketches[g][i] = new QuantileSketch();
+            }
+        }
+    }
+
+    // Index of a table column in COLUMNS, or -1 if it is not sketched
+    public static int indexOf(int column){
+        for(int i=0; i<COLUMNS.length; i++){
+            if(COLUMNS[i] == column) return i;
+        }
+        return -1;
+    }
+
+    public QuantileSketch get(int group, int index){
+        return sketches[group][index];
+    }
+
+    public void merge(CometSketches other){
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            for(int i=0; i<COLUMNS.length; i++){
+                sketches[g][i].merge(other.sketches[g][i]);
+            }
+        }
+    }
+
+    // One line per group and measurement: group,measurement,sketch
+    public void write(String path) throws IOException {
+        PrintWriter out = new PrintWriter(path);
+        out.println(FILE_HEADER);
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            for(int i=0; i<COLUMNS.length; i++){
+                out.println(CometStatistics.getGroupName(g) + "," + COLUMN_NAMES[i] + "," +
+                            sketches[g][i].serialize());
+            }
+        }
+        out.close();
+        if(out.checkError()){
+            throw new IOException("could not write " + path);
+        }
+    }
+
+    public static CometSketches read(String path) throws IOException {
+        CometSketches result = new CometSketches();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line = in.readLine();
+            if(!FILE_HEADER.equals(line)){
+                throw new IOException(path + " is not an OpenComet sketch file");
+            }
+            while((line = in.readLine()) != null){
+                if(line.length() == 0) continue;
+                String[] f = line.split(",", 3);
+                int g = groupOf(f[0]);
+                int i = (f.length == 3) ? columnOf(f[1]) : -1;
+                if(g < 0 || i < 0){
+                    throw new IOException("bad sketch line in " + path + ": " + line);
+                }
+                try {
+                    result.sketches[g][i] = QuantileSketch.deserialize(f[2]);
+                }
+                catch(IllegalArgumentException ex){
+                    throw new IOException("bad sketch in " + path + ": " + ex.getMessage());
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static int groupOf(String name){
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            if(CometStatistics.getGroupName(g).equals(name)) return g;
+        }
+        return -1;
+    }
+
+    private static int columnOf(String name){
+        for(int i=0; i<COLUMN_NAMES.length; i++){
+            if(COLUMN_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // Counts and quantiles of every group as CSV: per group a Count row
+    // with the number of sketched values of each measurement, which leaves
+    // out its NaNs, followed by one row per quantile
+    public String getQuantileTable(String sep){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Statistic").append(sep).append("Group");
+        for(String name : COLUMN_NAMES) sb.append(sep).append(name);
+        sb.append("\n");
+        for(int g=0; g<CometStatistics.N_GROUPS; g++){
+            sb.append("Count").append(sep).append(CometStatistics.getGroupName(g));
+            for(int i=0; i<COLUMNS.length; i++){
+                sb.append(sep).append(sketches[g][i].getCount());
+            }
+            sb.append("\n");
+            for(int q=0; q<QUANTILES.length; q++){
+                sb.append(QUANTILE_NAMES[q]).append(sep).append(CometStatistics.getGroupName(g));
+                for(int i=0; i<COLUMNS.length; i++){
+                    sb.append(sep).append(sketches[g][i].getQuantile(QUANTILES[q]));
+                }
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args){
+        CometSketches merged = new CometSketches();
+        String outPath = null;
+        int nFiles = 0;
+        try {
+            for(String arg : args){
+                if(arg.startsWith("out=")){
+                    outPath = arg.substring(4);
+                    continue;
+                }
+                merged.merge(read(arg));
+                nFiles++;
+            }
+            if(nFiles == 0){
+                System.err.println("Usage: CometSketches <sketch files> [out=<merged sketch file>]");
+                System.exit(2);
+            }
+            System.out.print(merged.getQuantileTable(","));
+            if(outPath != null) merged.write(outPath);
+        }
+        catch(IOException ex){
+            System.err.println("CometSketches: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -26,281 +26,331 @@
 * along with this plugin; if not, write to the Free Software
 * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
 */
-import ij.IJ;
-import ij.ImagePlus;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-
 
+// Summary statistics of the measurable comets of a CometTable, for each
+// status group and measurement. One pass over the table collects the
+// values of each status; means, sample standard deviations (two-pass),
+// medians (selection) and ranges are then computed per group. With
+// quantiles, the tail measurements of each status are also sketched and
+// the sketches merged into P5, P25, P75 and P95 rows of each group.
 public class CometStatistics {
-    private HashMap<ImagePlus,Comet[]> Comets;
-    Statistics cometAreaStats, cometIntensityStats;
-    Statistics cometLengthStats, cometDNAStats;
-    Statistics headAreaStats, headIntensityStats, headLengthStats;
-    Statistics headDNAStats, headDNAPercentStats;
-    Statistics tailAreaStats, tailIntensityStats, tailLengthStats;
-    Statistics tailDNAStats, tailDNAPercentStats;
-    Statistics tailMomentStats, tailOliveMomentStats;
+    // Status groups, in the order they are written to the CSV
+    public static final int NORMAL = 0;
+    public static final int NORMAL_OUTLIER = 1;
+    public static final int NORMAL_INVALID_SIZE = 2;
+    public static final int ALL_MEASURABLE = 3;
+    public static final int N_GROUPS = 4;
+    private static final int[] GROUP_MASKS = {Comet.VALID, Comet.VALID|Comet.OUTLIER,
+                                              Comet.VALID|Comet.INVALID_SIZE,
+                                              Comet.VALID|Comet.INVALID_SIZE|Comet.OUTLIER};
+    private static final String[] GROUP_NAMES = {"normal", "normal+outlier",
+                                                 "normal+invalid_size", "all_measurable"};
 
-    public CometStatistics(HashMap<ImagePlus,Comet[]> Comets, int flag){
-        this.Comets = Comets;
-        cometAreaStats = new Statistics();
-        cometIntensityStats = new Statistics(); 
-        cometLengthStats = new Statistics();
-        cometDNAStats = new Statistics();
-        headAreaStats = new Statistics();
-        headIntensityStats = new Statistics();
-        headLengthStats = new Statistics();
-        headDNAStats = new Statistics();
-        headDNAPercentStats = new Statistics();
-        tailAreaStats = new Statistics();
-        tailIntensityStats = new Statistics();
-        tailLengthStats = new Statistics();
-        tailDNAStats = new Statistics();
-        tailDNAPercentStats = new Statistics();
-        tailMomentStats = new Statistics();
-        tailOliveMomentStats = new Statistics();
-        for (Map.Entry<ImagePlus,Comet[]> element : Comets.entrySet()) {
-                Comet[] imageComets = element.getValue();
-                for(int i=0;i<imageComets.length;i++){
-                    if((imageComets[i].status & flag)!=0){
-                        cometAreaStats.add(imageComets[i].cometArea);
-                        cometIntensityStats.add(imageComets[i].cometIntensity);
-                        cometLengthStats.add(imageComets[i].cometLength);
-                        cometDNAStats.add(imageComets[i].cometDNA);
-                        headAreaStats.add(imageComets[i].headArea);
-                        headIntensityStats.add(imageComets[i].headIntensity);
-                        headLengthStats.add(imageComets[i].headLength);
-                        headDNAStats.add(imageComets[i].headDNA);
-                        headDNAPercentStats.add(imageComets[i].headDNAPercent);
-                        tailAreaStats.add(imageComets[i].tailArea);
-                        tailIntensityStats.add(imageComets[i].tailIntensity);
-                        tailLengthStats.add(imageComets[i].tailLength);
-                        tailDNAStats.add(imageComets[i].tailDNA);
-                        tailDNAPercentStats.add(imageComets[i].tailDNApercent);
-                        tailMomentStats.add(imageComets[i].tailMoment);
-                        tailOliveMomentStats.add(imageComets[i].tailOliveMoment);
-                    }
-                }
-            }
-        }
+    // Measurable statuses; every group is a union of them
+    private static final int[] STATUSES = {Comet.VALID, Comet.INVALID_SIZE, Comet.OUTLIER};
 
-    public String getStatisticsString(String sep, String group){
-        String outStr;
-        outStr = "Mean" + sep + sep + group + sep + 
-                cometAreaStats.getMean() + sep +
-                cometIntensityStats.getMean() + sep + 
-                cometLengthStats.getMean() + sep + 
-                cometDNAStats.getMean() + sep + 
-                headAreaStats.getMean() + sep + 
-                headIntensityStats.getMean() + sep + 
-                headLengthStats.getMean() + sep + 
-                headDNAStats.getMean() + sep + 
-                headDNAPercentStats.getMean() + sep + 
-                tailAreaStats.getMean() + sep + 
-                tailIntensityStats.getMean() + sep + 
-                tailLengthStats.getMean() + sep + 
-                tailDNAStats.getMean() + sep + 
-                tailDNAPercentStats.getMean() + sep + 
-                tailMomentStats.getMean() + sep + 
-                tailOliveMomentStats.getMean() + sep + "\n";
+    // Order of the measurements in the statistics rows
+    private static final int[] STAT_COLUMNS = {CometTable.COMET_AREA, CometTable.COMET_INTENSITY,
+        CometTable.COMET_LENGTH, CometTable.COMET_DNA, CometTable.HEAD_AREA,
+        CometTable.HEAD_INTENSITY, CometTable.HEAD_LENGTH, CometTable.HEAD_DNA,
+        CometTable.HEAD_DNA_PERCENT, CometTable.TAIL_AREA, CometTable.TAIL_INTENSITY,
+        CometTable.TAIL_LENGTH, CometTable.TAIL_DNA, CometTable.TAIL_DNA_PERCENT,
+        CometTable.TAIL_MOMENT, CometTable.TAIL_OLIVE_MOMENT};
+    private static final String[] STAT_NAMES = {"CometArea", "CometIntensity", "Length",
+        "CometDNA", "HeadArea", "HeadIntensity", "HeadLength", "HeadDNA", "HeadDNA%",
+        "TailArea", "TailIntensity", "TailLength", "TailDNA", "TailDNA%", "TailMoment",
+        "TailOliveMoment"};
 
-        outStr += "Median" + sep+ sep + group + sep + 
-                cometAreaStats.getMedian() + sep +
-                cometIntensityStats.getMedian() + sep + 
-                cometLengthStats.getMedian() + sep + 
-                cometDNAStats.getMedian() + sep + 
-                headAreaStats.getMedian() + sep + 
-                headIntensityStats.getMedian() + sep + 
-                headLengthStats.getMedian() + sep + 
-                headDNAStats.getMedian() + sep + 
-                headDNAPercentStats.getMedian() + sep + 
-                tailAreaStats.getMedian() + sep + 
-                tailIntensityStats.getMedian() + sep + 
-                tailLengthStats.getMedian() + sep + 
-                tailDNAStats.getMedian() + sep + 
-                tailDNAPercentStats.getMedian() + sep + 
-                tailMomentStats.getMedian() + sep + 
-                tailOliveMomentStats.getMedian() + sep + "\n";
+    private final int[] statusCounts = new int[STATUSES.length];
+    private final int[] groupCounts = new int[N_GROUPS];
+    // [group][column]
+    private final double[][] mean, median, stddev, minval, maxval;
+    // Quantile sketches of each group, or null
+    private final CometSketches sketches;
 
-        outStr += "Stddev" + sep + sep + group + sep + 
-                cometAreaStats.getStddev() + sep +
-                cometIntensityStats.getStddev() + sep + 
-                cometLengthStats.getStddev() + sep + 
-                cometDNAStats.getStddev() + sep + 
-                headAreaStats.getStddev() + sep + 
-                headIntensityStats.getStddev() + sep + 
-                headLengthStats.getStddev() + sep + 
-                headDNAStats.getStddev() + sep + 
-                headDNAPercentStats.getStddev() + sep + 
-                tailAreaStats.getStddev() + sep + 
-                tailIntensityStats.getStddev() + sep + 
-                tailLengthStats.getStddev() + sep + 
-                tailDNAStats.getStddev() + sep + 
-                tailDNAPercentStats.getStddev() + sep + 
-                tailMomentStats.getStddev() + sep + 
-                tailOliveMomentStats.getStddev() + sep + "\n";
+    public CometStatistics(CometTable table){
+        this(table, false);
+    }
 
-        outStr += "Min" + sep + sep + group + sep + 
-                cometAreaStats.getMin() + sep +
-                cometIntensityStats.getMin() + sep + 
-                cometLengthStats.getMin() + sep + 
-                cometDNAStats.getMin() + sep + 
-                headAreaStats.getMin() + sep + 
-                headIntensityStats.getMin() + sep + 
-                headLengthStats.getMin() + sep + 
-                headDNAStats.getMin() + sep + 
-                headDNAPercentStats.getMin() + sep + 
-                tailAreaStats.getMin() + sep + 
-                tailIntensityStats.getMin() + sep + 
-                tailLengthStats.getMin() + sep + 
-                tailDNAStats.getMin() + sep + 
-                tailDNAPercentStats.getMin() + sep + 
-                tailMomentStats.getMin() + sep + 
-                tailOliveMomentStats.getMin() + sep + "\n";
+    public CometStatistics(CometTable table, boolean quantiles){
+        int nCols = CometTable.N_COLUMNS;
+        int n = table.size();
+        byte[] status = table.getStatusColumn();
+        double[][] columns = new double[nCols][];
+        for(int c=0; c<nCols; c++){
+            columns[c] = table.getColumn(c);
+        }
 
-        outStr += "Max" + sep + sep + group + sep + 
-                cometAreaStats.getMax() + sep +
-                cometIntensityStats.getMax() + sep + 
-                cometLengthStats.getMax() + sep + 
-                cometDNAStats.getMax() + sep + 
-                headAreaStats.getMax() + sep + 
-                headIntensityStats.getMax() + sep + 
-                headLengthStats.getMax() + sep + 
-                headDNAStats.getMax() + sep + 
-                headDNAPercentStats.getMax() + sep + 
-                tailAreaStats.getMax() + sep + 
-                tailIntensityStats.getMax() + sep + 
-                tailLengthStats.getMax() + sep + 
-                tailDNAStats.getMax() + sep + 
-                tailDNAPercentStats.getMax() + sep + 
-                tailMomentStats.getMax() + sep + 
-                tailOliveMomentStats.getMax() + sep + "\n";
+        int[] statusOf = new int[256];
+        for(int s=0; s<STATUSES.length; s++){
+            statusOf[STATUSES[s]] = s + 1;
+        }
+        for(int row=0; row<n; row++){
+            int s = statusOf[status[row] & 0xff] - 1;
+            if(s >= 0) statusCounts[s]++;
+        }
 
-        return outStr;
-    }
+        // Single pass: the values of each status, and the sums of each group
+        // in row order, as the CSV rows are written
+        double[][][] values = new double[STATUSES.length][nCols][];
+        for(int s=0; s<STATUSES.length; s++){
+            for(int c=0; c<nCols; c++){
+                values[s][c] = new double[statusCounts[s]];
+            }
+        }
+        int[] filled = new int[STATUSES.length];
+        double[][] sum = new double[N_GROUPS][nCols];
+        int[] statusGroups = new int[STATUSES.length];
+        for(int s=0; s<STATUSES.length; s++){
+            for(int g=0; g<N_GROUPS; g++){
+                if((GROUP_MASKS[g] & STATUSES[s]) != 0) statusGroups[s] |= 1 << g;
+            }
+        }
+        for(int row=0; row<n; row++){
+            int s = statusOf[status[row] & 0xff] - 1;
+            if(s < 0 || filled[s] == statusCounts[s]) continue;
+            int k = filled[s]++;
+            int groups = statusGroups[s];
+            for(int c=0; c<nCols; c++){
+                double v = columns[c][row];
+                values[s][c][k] = v;
+                for(int g=0; g<N_GROUPS; g++){
+                    if((groups & (1 << g)) != 0) sum[g][c] += v;
+                }
+            }
+        }
 
-    public Map<String, Double> getStatistics() {
-        Map<String, Double> stats = new HashMap<>();
-        int validCount = 0;
-        int sizeInvalidCount = 0;
-        
-        // Get all comets from the HashMap
-        for (Map.Entry<ImagePlus,Comet[]> entry : Comets.entrySet()) {
-            Comet[] imageComets = entry.getValue();
-            for (Comet comet : imageComets) {
-                if (comet.canCalculateStats()) {
-                    validCount++;
-                    if (comet.status == Comet.INVALID_SIZE) {
-                        sizeInvalidCount++;
+        if(quantiles){
+            // Sketch each status, then merge the statuses of each group
+            sketches = new CometSketches();
+            int nSketched = CometSketches.COLUMNS.length;
+            QuantileSketch[][] statusSketches = new QuantileSketch[STATUSES.length][nSketched];
+            for(int s=0; s<STATUSES.length; s++){
+                for(int i=0; i<nSketched; i++){
+                    QuantileSketch sketch = statusSketches[s][i] = new QuantileSketch();
+                    double[] v = values[s][CometSketches.COLUMNS[i]];
+                    for(int k=0; k<filled[s]; k++){
+                        sketch.add(v[k]);
+                    }
+                }
+            }
+            for(int g=0; g<N_GROUPS; g++){
+                for(int s=0; s<STATUSES.length; s++){
+                    if((statusGroups[s] & (1 << g)) == 0) continue;
+                    for(int i=0; i<nSketched; i++){
+                        sketches.get(g, i).merge(statusSketches[s][i]);
                     }
-                    // Calculate statistics for valid and size-invalid comets
-                    cometAreaStats.add(comet.cometArea);
-                    cometIntensityStats.add(comet.cometIntensity);
-                    cometLengthStats.add(comet.cometLength);
-                    cometDNAStats.add(comet.cometDNA);
-                    headAreaStats.add(comet.headArea);
-                    headIntensityStats.add(comet.headIntensity);
-                    headLengthStats.add(comet.headLength);
-                    headDNAStats.add(comet.headDNA);
-                    headDNAPercentStats.add(comet.headDNAPercent);
-                    tailAreaStats.add(comet.tailArea);
-                    tailIntensityStats.add(comet.tailIntensity);
-                    tailLengthStats.add(comet.tailLength);
-                    tailDNAStats.add(comet.tailDNA);
-                    tailDNAPercentStats.add(comet.tailDNApercent);
-                    tailMomentStats.add(comet.tailMoment);
-                    tailOliveMomentStats.add(comet.tailOliveMoment);
                 }
             }
         }
-        
-        stats.put("Total Valid Count", (double)validCount);
-        stats.put("Size Invalid Count", (double)sizeInvalidCount);
-        return stats;
-    }
+        else {
+            sketches = null;
+        }
 
-    private class Statistics {
-        public Statistics(){
-            valueList = new ArrayList<Double>();
-            updated = false;
+        mean = new double[N_GROUPS][nCols];
+        median = new double[N_GROUPS][nCols];
+        stddev = new double[N_GROUPS][nCols];
+        minval = new double[N_GROUPS][nCols];
+        maxval = new double[N_GROUPS][nCols];
+        double[] scratch = new double[n];
+        for(int g=0; g<N_GROUPS; g++){
+            for(int s=0; s<STATUSES.length; s++){
+                if((statusGroups[s] & (1 << g)) != 0) groupCounts[g] += filled[s];
             }
-
-        public void add(double val){
-            valueList.add(val);
-            updated = false;
+            for(int c=0; c<nCols; c++){
+                // Gather the group's values, NaNs last as in a sort
+                int lo = 0, hi = groupCounts[g];
+                for(int s=0; s<STATUSES.length; s++){
+                    if((statusGroups[s] & (1 << g)) == 0) continue;
+                    double[] v = values[s][c];
+                    for(int i=0; i<filled[s]; i++){
+                        if(v[i] != v[i]) scratch[--hi] = v[i];
+                        else scratch[lo++] = v[i];
+                    }
+                }
+                summarize(g, c, scratch, lo, groupCounts[g], sum[g][c]);
             }
+        }
+    }
 
-        public double getMean(){
-            if(!updated) updateStatistics();
-            return mean;
-            }
+    // Statistics of scratch[0..count), whose first nNumbers entries are not NaN
+    private void summarize(int g, int c, double[] scratch, int nNumbers, int count, double sum){
+        if(count == 0){
+            mean[g][c] = median[g][c] = stddev[g][c] = minval[g][c] = maxval[g][c] = Double.NaN;
+            return;
+        }
+        mean[g][c] = sum / count;
 
-        public double getMedian(){
-            if(!updated) updateStatistics();
-            return median;
+        // Two-pass sample variance around the mean
+        double m = mean[g][c];
+        double ss = 0.0, comp = 0.0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(int i=0; i<count; i++){
+            double d = scratch[i] - m;
+            ss += d*d;
+            comp += d;
+            if(i < nNumbers){
+                if(scratch[i] < min) min = scratch[i];
+                if(scratch[i] > max) max = scratch[i];
             }
+        }
+        stddev[g][c] = (count < 2) ? 0.0 : Math.sqrt((ss - comp*comp/count) / (count - 1));
+        minval[g][c] = (nNumbers > 0) ? min : Double.NaN;
+        maxval[g][c] = (nNumbers < count) ? Double.NaN : max;
 
-        public double getStddev(){
-            if(!updated) updateStatistics();
-            return stddev;
+        // Median of the sorted order, NaNs being the largest values
+        int k = (count - 1) / 2;
+        double lower = orderStatistic(scratch, nNumbers, k);
+        if(count % 2 == 1){
+            median[g][c] = lower;
         }
+        else {
+            double upper = (k + 1 < nNumbers) ? minAbove(scratch, k + 1, nNumbers) : Double.NaN;
+            median[g][c] = (lower + upper) / 2.0;
+        }
+    }
 
-        public double getMin(){
-            if(!updated) updateStatistics();
-            return minval;
+    // k-th smallest of a[0..n) by quickselect, NaN if k is past the numbers.
+    // Afterwards a[k+1..n) holds values no smaller than the result.
+    private static double orderStatistic(double[] a, int n, int k){
+        if(k >= n) return Double.NaN;
+        int left = 0, right = n - 1;
+        while(right > left){
+            // Median of three as pivot
+            int mid = (left + right) >>> 1;
+            if(a[mid] < a[left]) swap(a, mid, left);
+            if(a[right] < a[left]) swap(a, right, left);
+            if(a[right] < a[mid]) swap(a, right, mid);
+            double pivot = a[mid];
+            int i = left, j = right;
+            while(i <= j){
+                while(a[i] < pivot) i++;
+                while(a[j] > pivot) j--;
+                if(i <= j){
+                    swap(a, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j) right = j;
+            else if(k >= i) left = i;
+            else break;
         }
+        return a[k];
+    }
 
-        public double getMax(){
-            if(!updated) updateStatistics();
-            return maxval;
+    private static double minAbove(double[] a, int from, int to){
+        double min = a[from];
+        for(int i=from+1; i<to; i++){
+            if(a[i] < min) min = a[i];
         }
+        return min;
+    }
+
+    private static void swap(double[] a, int i, int j){
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    public static String getGroupName(int group){
+        return GROUP_NAMES[group];
+    }
+
+    public int getCount(int group){
+        return groupCounts[group];
+    }
+
+    public double getMean(int group, int column){
+        return mean[group][column];
+    }
+
+    public double getMedian(int group, int column){
+        return median[group][column];
+    }
+
+    public double getStddev(int group, int column){
+        return stddev[group][column];
+    }
 
-        private void updateStatistics(){
-            Collections.sort(valueList);
+    public double getMin(int group, int column){
+        return minval[group][column];
+    }
 
+    public double getMax(int group, int column){
+        return maxval[group][column];
+    }
 
-            int nElem = valueList.size();
+    // Sketches of all groups, or null if quantiles were not requested
+    public CometSketches getSketches(){
+        return sketches;
+    }
 
-            if(nElem == 1){
-                mean = median = minval = maxval = valueList.get(0);
-                stddev = 0;
-                updated = true;
+    // The Mean, Median, Stddev, Min and Max rows of one group, followed by
+    // the quantile rows if requested
+    public String getStatisticsString(String sep, int group){
+        StringBuilder sb = new StringBuilder();
+        appendRow(sb, "Mean", sep, group, mean[group]);
+        appendRow(sb, "Median", sep, group, median[group]);
+        appendRow(sb, "Stddev", sep, group, stddev[group]);
+        appendRow(sb, "Min", sep, group, minval[group]);
+        appendRow(sb, "Max", sep, group, maxval[group]);
+        if(sketches != null){
+            for(int q=0; q<CometSketches.QUANTILES.length; q++){
+                appendQuantileRow(sb, q, sep, group);
             }
-            else {
-                mean = median = stddev = 0;
-                minval = valueList.get(0);
-                maxval = valueList.get(nElem-1);
+        }
+        return sb.toString();
+    }
 
-                median = (nElem %2 ==1) ? (valueList.get((nElem+1)/2-1)) : 
-                     (((valueList.get((nElem+1)/2-1))) + 
-                     (valueList.get((nElem+1)/2-1)) / 2.0); 
+    // The rows of all groups
+    public String getStatisticsString(String sep){
+        StringBuilder sb = new StringBuilder();
+        for(int g=0; g<N_GROUPS; g++){
+            sb.append(getStatisticsString(sep, g));
+        }
+        return sb.toString();
+    }
 
-                double sum1=0.0,sum2=0.0;
+    // Header naming the fields of the statistics rows
+    public static String getHeaderString(String sep){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Statistic").append(sep).append(sep).append("Group").append(sep);
+        for(String name : STAT_NAMES){
+            sb.append(name).append(sep);
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
 
-                Iterator it=valueList.iterator();
-                int i = 0;
-                while(it.hasNext()){
-                    i++;
-                    double val= (Double)it.next();
-                    sum1 += val;
-                    sum2 += val*val;
-                    IJ.log(i+": "+val);
-                    }
-                mean = sum1/nElem;
-                stddev = Math.sqrt((sum2-(sum1*sum1)/nElem)/(nElem-1));
-                IJ.log("Mean: "+mean+" Sum1: "+sum1+" n:"+nElem);
-            } 
-            updated = true;
+    static void appendRow(StringBuilder sb, String name, String sep,
+                                  int group, double[] stats){
+        sb.append(name).append(sep).append(sep).append(GROUP_NAMES[group]).append(sep);
+        for(int c : STAT_COLUMNS){
+            sb.append(stats[c]).append(sep);
         }
+        sb.append("\n");
+    }
 
-        private double mean, median, stddev, minval, maxval;
-        private ArrayList<Double> valueList;
-        private boolean updated;
+    // Measurements that are not sketched are left empty
+    private void appendQuantileRow(StringBuilder sb, int q, String sep, int group){
+        sb.append(CometSketches.QUANTILE_NAMES[q]).append(sep).append(sep)
+          .append(GROUP_NAMES[group]).append(sep);
+        for(int c : STAT_COLUMNS){
+            int i = CometSketches.indexOf(c);
+            if(i >= 0) sb.append(sketches.get(group, i).getQuantile(CometSketches.QUANTILES[q]));
+            sb.append(sep);
+        }
+        sb.append("\n");
+    }
 
+    public Map<String, Double> getStatistics() {
+        Map<String, Double> stats = new HashMap<>();
+        stats.put("Total Valid Count", (double)groupCounts[ALL_MEASURABLE]);
+        stats.put("Size Invalid Count", (double)statusCounts[1]);
+        return stats;
     }
 }
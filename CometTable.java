@@ -0,0 +1,180 @@
+/**
+* CometTable.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometTable.java keeps the results of all comets in primitive
+* columns: one double[] per measurement plus the image, id and status
+* of each comet, about 140 bytes per comet. Rows are appended once a
+* comet has been measured, so the Comet objects with their ROIs and
+* profiles can be dropped. Rows are never removed; only the status of
+* a row changes later, when comets are reviewed.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class CometTable {
+    // Measurement columns, in CSV order
+    public static final int COMET_LENGTH = 0;
+    public static final int HEAD_LENGTH = 1;
+    public static final int TAIL_LENGTH = 2;
+    public static final int HEAD_AREA = 3;
+    public static final int TAIL_AREA = 4;
+    public static final int COMET_AREA = 5;
+    public static final int HEAD_INTENSITY = 6;
+    public static final int TAIL_INTENSITY = 7;
+    public static final int COMET_INTENSITY = 8;
+    public static final int HEAD_DNA = 9;
+    public static final int TAIL_DNA = 10;
+    public static final int COMET_DNA = 11;
+    public static final int HEAD_DNA_PERCENT = 12;
+    public static final int TAIL_DNA_PERCENT = 13;
+    public static final int TAIL_MOMENT = 14;
+    public static final int TAIL_OLIVE_MOMENT = 15;
+    public static final int N_COLUMNS = 16;
+
+    private int size;
+    private int[] image;
+    private int[] id;
+    private byte[] status;
+    private final double[][] values;
+    private final ArrayList<String> imageKeys;
+
+    public CometTable(){
+        int capacity = 1024;
+        image = new int[capacity];
+        id = new int[capacity];
+        status = new byte[capacity];
+        values = new double[N_COLUMNS][capacity];
+        imageKeys = new ArrayList<String>();
+    }
+
+    // Append the comets of one image; returns the row of the first comet
+    public synchronized int addImage(String imageKey, Comet[] comets){
+        int imageIndex = imageKeys.size();
+        imageKeys.add(imageKey);
+        int first = size;
+        ensureCapacity(size + comets.length);
+        for(Comet comet : comets){
+            image[size] = imageIndex;
+            id[size] = comet.id;
+            status[size] = (byte)comet.status;
+            values[COMET_LENGTH][size] = comet.cometLength;
+            values[HEAD_LENGTH][size] = comet.headLength;
+            values[TAIL_LENGTH][size] = comet.tailLength;
+            values[HEAD_AREA][size] = comet.headArea;
+            values[TAIL_AREA][size] = comet.tailArea;
+            values[COMET_AREA][size] = comet.cometArea;
+            values[HEAD_INTENSITY][size] = comet.headIntensity;
+            values[TAIL_INTENSITY][size] = comet.tailIntensity;
+            values[COMET_INTENSITY][size] = comet.cometIntensity;
+            values[HEAD_DNA][size] = comet.headDNA;
+            values[TAIL_DNA][size] = comet.tailDNA;
+            values[COMET_DNA][size] = comet.cometDNA;
+            values[HEAD_DNA_PERCENT][size] = comet.headDNAPercent;
+            values[TAIL_DNA_PERCENT][size] = comet.tailDNApercent;
+            values[TAIL_MOMENT][size] = comet.tailMoment;
+            values[TAIL_OLIVE_MOMENT][size] = comet.tailOliveMoment;
+            size++;
+        }
+        return first;
+    }
+
+    private void ensureCapacity(int n){
+        if(n <= id.length) return;
+        int capacity = Math.max(n, id.length + (id.length >> 1));
+        image = Arrays.copyOf(image, capacity);
+        id = Arrays.copyOf(id, capacity);
+        status = Arrays.copyOf(status, capacity);
+        for(int c=0; c<N_COLUMNS; c++){
+            values[c] = Arrays.copyOf(values[c], capacity);
+        }
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized int getImageCount(){
+        return imageKeys.size();
+    }
+
+    public synchronized String getImageKey(int imageIndex){
+        return imageKeys.get(imageIndex);
+    }
+
+    public synchronized int getImage(int row){
+        return image[row];
+    }
+
+    public synchronized int getId(int row){
+        return id[row];
+    }
+
+    public synchronized int getStatus(int row){
+        return status[row];
+    }
+
+    public synchronized void setStatus(int row, int newStatus){
+        status[row] = (byte)newStatus;
+    }
+
+    public synchronized double getValue(int column, int row){
+        return values[column][row];
+    }
+
+    // The backing array of a column. Rows below size() never change, so
+    // bulk readers may scan it without holding the table lock.
+    public synchronized double[] getColumn(int column){
+        return values[column];
+    }
+
+    // The backing status array; entries may change when comets are reviewed
+    public synchronized byte[] getStatusColumn(){
+        return status;
+    }
+
+    public static String getStatusName(int status){
+        if(status == Comet.VALID)
+            return "normal";
+        else if (status == Comet.INVALID_SIZE)
+            return "size_invalid";
+        else if (status == Comet.INVALID_NO_HEAD)
+            return "no_head";
+        else if (status == Comet.OUTLIER)
+            return "outlier";
+        else if (status == Comet.DELETED)
+            return "deleted";
+        return null;
+    }
+
+    // Same text as Comet.getMeasurementString, read from the table
+    public synchronized String getMeasurementString(int row, String sep){
+        String flagStr = getStatusName(status[row]);
+        if(flagStr == null) return "";
+        StringBuilder sb = new StringBuilder();
+        sb.append(id[row]).append(sep).append(flagStr);
+        for(int c=0; c<N_COLUMNS; c++){
+            sb.append(sep).append(values[c][row]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+* CometTileSource.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometTileSource.java is the 8-bit image CometAnalyzer searches and
+* measures, read a rectangle at a time. The tiled search reads each
+* tile with its halo and every comet is measured on a tile of its own,
+* so an image read through a source is never held whole: MappedTiff
+* reads tiles from a memory mapped file, and images on the heap are
+* converted tile by tile.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.process.ByteProcessor;
+
+import java.awt.Rectangle;
+
+public interface CometTileSource {
+    int getWidth();
+
+    int getHeight();
+
+    // New 8-bit copy of the pixels in r, which lies inside the image.
+    // Safe to call from several threads at once.
+    ByteProcessor getTile(Rectangle r);
+}
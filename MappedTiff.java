@@ -0,0 +1,278 @@
+/**
+* MappedTiff.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* MappedTiff.java reads uncompressed, strip organized TIFF files
+* through a read-only memory mapping instead of loading them onto the
+* heap. It is the CometTileSource of the file: tiles of the 8-bit image
+* that CometAnalyzer analyzes are converted from the mapping as they are
+* read, so a tiled analysis of a slide scan never holds the whole image.
+* The conversion needs the display range of 16-bit files without one
+* stored, or the brightest channel of RGB files, which costs one pass
+* over the file when it is opened. The header is read by ImageJ's TiffDecoder; files it
+* does not describe as a single uncompressed 8-bit, 16-bit or RGB
+* image are left to IJ.openImage.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedTiff implements CometTileSource {
+    // Size of each mapped segment; a mapping is limited to 2 GB
+    private static final long SEGMENT = 1L << 30;
+
+    private final String name;
+    private final int width, height, type;
+    private final int bytesPerPixel;
+    private final boolean littleEndian;
+    private final long[] stripOffsets;
+    private final int rowsPerStrip;
+    // Display range stored by ImageJ in the description of 16-bit images, or NaN
+    private final double storedMin, storedMax;
+    private final MappedByteBuffer[] segments;
+    // 8-bit conversion: 16-bit values from min with scale, RGB channel 0-2
+    private final int min;
+    private final double scale;
+    private final int channel;
+
+    private MappedTiff(File file, FileInfo fi, int rgbChannel) throws IOException {
+        name = file.getName();
+        width = fi.width;
+        height = fi.height;
+        littleEndian = fi.intelByteOrder;
+        if(fi.fileType == FileInfo.GRAY8){
+            type = ImagePlus.GRAY8;
+            bytesPerPixel = 1;
+        }
+        else if(fi.fileType == FileInfo.GRAY16_UNSIGNED){
+            type = ImagePlus.GRAY16;
+            bytesPerPixel = 2;
+        }
+        else {
+            type = ImagePlus.COLOR_RGB;
+            bytesPerPixel = 3;
+        }
+        if(fi.stripOffsets != null && fi.stripOffsets.length > 0){
+            stripOffsets = new long[fi.stripOffsets.length];
+            for(int i=0; i<stripOffsets.length; i++){
+                // Offsets are unsigned 32-bit values
+                stripOffsets[i] = fi.stripOffsets[i] & 0xffffffffL;
+            }
+            rowsPerStrip = (fi.rowsPerStrip > 0) ? fi.rowsPerStrip : height;
+        }
+        else {
+            stripOffsets = new long[]{fi.getOffset()};
+            rowsPerStrip = height;
+        }
+        double[] range = parseDisplayRange(fi.description);
+        storedMin = range[0];
+        storedMax = range[1];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long end = rowOffset(height - 1) + (long)width*bytesPerPixel;
+            if(end > size){
+                throw new IOException(name + " is shorter than its image data");
+            }
+            segments = new MappedByteBuffer[(int)((size + SEGMENT - 1) / SEGMENT)];
+            for(int i=0; i<segments.length; i++){
+                long start = i*SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                          Math.min(SEGMENT, size - start));
+            }
+        }
+        finally {
+            // The mappings stay valid after the channel is closed
+            raf.close();
+        }
+
+        byte[] row = new byte[width*bytesPerPixel];
+        int lo = 0, hi = 255;
+        if(type == ImagePlus.GRAY16){
+            // Display range as set when ImageJ opens the file
+            lo = (int)storedMin;
+            hi = (int)storedMax;
+            if(storedMin != storedMin || storedMax != storedMax){
+                lo = 65535;
+                hi = 0;
+                for(int y=0; y<height; y++){
+                    readRow(y, 0, width, row);
+                    for(int x=0; x<width; x++){
+                        int v = sample16(row, x);
+                        if(v < lo) lo = v;
+                        if(v > hi) hi = v;
+                    }
+                }
+            }
+        }
+        min = lo;
+        // Same scaling as ImageJ's TypeConverter
+        scale = 256.0/(hi - lo + 1);
+        channel = (type != ImagePlus.COLOR_RGB) ? 0 :
+                  (rgbChannel >= 1 && rgbChannel <= 3) ? rgbChannel - 1 : getBrightestChannel(row);
+    }
+
+    // Map a TIFF file, or return null if it is not a single uncompressed
+    // 8-bit, 16-bit or RGB image that can be read this way. rgbChannel is
+    // the channel of RGB images that is read (1 red, 2 green, 3 blue), or
+    // 0 for the brightest one.
+    public static MappedTiff open(File file, int rgbChannel) throws IOException {
+        if(!file.getName().toLowerCase().matches(".*\\.tiff?")) return null;
+        FileInfo[] info = new TiffDecoder(file.getParent() + File.separator,
+                                          file.getName()).getTiffInfo();
+        if(info == null || info.length != 1) return null;
+        FileInfo fi = info[0];
+        if(fi.nImages > 1 || fi.compression != FileInfo.COMPRESSION_NONE) return null;
+        if(fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED &&
+           fi.fileType != FileInfo.RGB) return null;
+        // Palettes and inverted gray scales change how ImageJ shows the pixels
+        if(fi.lutSize > 0 || fi.whiteIsZero) return null;
+        if(fi.width <= 0 || fi.height <= 0) return null;
+        if(fi.stripOffsets != null && fi.stripOffsets.length > 1 && fi.rowsPerStrip <= 0) return null;
+        return new MappedTiff(file, fi, rgbChannel);
+    }
+
+    private static double[] parseDisplayRange(String description){
+        double[] range = {Double.NaN, Double.NaN};
+        if(description == null || !description.startsWith("ImageJ")) return range;
+        for(String line : description.split("\n")){
+            try {
+                if(line.startsWith("min=")) range[0] = Double.parseDouble(line.substring(4));
+                if(line.startsWith("max=")) range[1] = Double.parseDouble(line.substring(4));
+            }
+            catch(NumberFormatException ex){
+                return new double[]{Double.NaN, Double.NaN};
+            }
+        }
+        return range;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    // ImagePlus.GRAY8, GRAY16 or COLOR_RGB
+    public int getType(){
+        return type;
+    }
+
+    private long rowOffset(int y){
+        return stripOffsets[y / rowsPerStrip] + (long)(y % rowsPerStrip)*width*bytesPerPixel;
+    }
+
+    // Copy len bytes at pos of the file, which may span two segments
+    private void read(long pos, byte[] dst, int off, int len){
+        while(len > 0){
+            int s = (int)(pos / SEGMENT);
+            ByteBuffer b = segments[s].duplicate();
+            b.position((int)(pos - s*SEGMENT));
+            int n = Math.min(len, b.remaining());
+            b.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Raw bytes of pixels x..x+w of row y
+    private void readRow(int y, int x, int w, byte[] dst){
+        read(rowOffset(y) + (long)x*bytesPerPixel, dst, 0, w*bytesPerPixel);
+    }
+
+    private int sample16(byte[] row, int x){
+        int lo = row[2*x] & 0xff, hi = row[2*x + 1] & 0xff;
+        return littleEndian ? (hi << 8) | lo : (lo << 8) | hi;
+    }
+
+    // 8-bit tile as CometAnalyzer would convert the opened file: 8-bit
+    // pixels as they are, 16-bit scaled to the display range, and for RGB
+    // the chosen or brightest channel. Only the rows of the tile are read.
+    public ByteProcessor getTile(Rectangle r){
+        ByteProcessor bp = new ByteProcessor(r.width, r.height);
+        byte[] out = (byte[])bp.getPixels();
+        byte[] row = new byte[r.width*bytesPerPixel];
+        for(int y=0; y<r.height; y++){
+            readRow(r.y + y, r.x, r.width, row);
+            int o = y*r.width;
+            if(type == ImagePlus.GRAY8){
+                System.arraycopy(row, 0, out, o, r.width);
+            }
+            else if(type == ImagePlus.GRAY16){
+                for(int x=0; x<r.width; x++){
+                    int v = sample16(row, x) - min;
+                    if(v < 0) v = 0;
+                    v = (int)(v*scale + 0.5);
+                    if(v > 255) v = 255;
+                    out[o + x] = (byte)v;
+                }
+            }
+            else {
+                for(int x=0; x<r.width; x++){
+                    out[o + x] = row[3*x + channel];
+                }
+            }
+        }
+        return bp;
+    }
+
+    // The whole 8-bit image, for output images drawn over the input
+    public ByteProcessor getGrayscale(){
+        return getTile(new Rectangle(0, 0, width, height));
+    }
+
+    // Channel means accumulated as in CometAnalyzer.getCometChannel
+    private int getBrightestChannel(byte[] row){
+        int size = width*height;
+        double rAvg = 0, gAvg = 0, bAvg = 0;
+        for(int y=0; y<height; y++){
+            readRow(y, 0, width, row);
+            for(int i=0; i<3*width; i+=3){
+                rAvg += (double)row[i]/size;
+                gAvg += (double)row[i+1]/size;
+                bAvg += (double)row[i+2]/size;
+            }
+        }
+        boolean rg = (rAvg > gAvg);
+        boolean rb = (rAvg > bAvg);
+        boolean gb = (gAvg > bAvg);
+        return (rg && rb) ? 0 : (!rg && gb) ? 1 : 2;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+* MedianKernels.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* MedianKernels.java is a median filter for 8-bit images that gives
+* the same result as ImageJ's RankFilters median: the same circular
+* kernel, made of one horizontal line per row, and the same padding
+* with the nearest edge pixels. A 256-bin histogram of the kernel
+* slides along each row; moving one pixel updates only the two ends
+* of every kernel line, and the median moves from its last position
+* instead of being found by sorting the kernel. Rows are filtered in
+* independent bands, so they can run on several threads.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.util.Arrays;
+
+public final class MedianKernels {
+    private MedianKernels(){}
+
+    // Half widths of the kernel lines from the top row to the bottom row,
+    // as RankFilters.makeLineRadii computes them
+    public static int[] lineRadii(double radius){
+        if(radius >= 1.5 && radius < 1.75) radius = 1.75;
+        else if(radius >= 2.5 && radius < 2.85) radius = 2.85;
+        int r2 = (int)(radius*radius) + 1;
+        int kRadius = (int)(Math.sqrt(r2 + 1e-10));
+        int[] dx = new int[2*kRadius + 1];
+        dx[kRadius] = kRadius;
+        for(int y=1; y<=kRadius; y++){
+            int d = (int)(Math.sqrt(r2 - y*y + 1e-10));
+            dx[kRadius - y] = d;
+            dx[kRadius + y] = d;
+            }
+        return dx;
+        }
+
+    // Median of rows y0 to y1-1 of src, an image of the given size, written
+    // to the same rows of dst; src is not changed and must not be dst
+    public static void median(byte[] src, byte[] dst, int width, int height,
+                              int[] lineRadii, int y0, int y1){
+        int kRadius = lineRadii.length/2;
+        int nPoints = 0;
+        for(int d : lineRadii) nPoints += 2*d + 1;
+        // Rank of the median, the kernel always holding an odd number of points
+        int half = nPoints/2;
+        int[] hist = new int[256];
+        int[] rowOffset = new int[lineRadii.length];
+
+        for(int y=y0; y<y1; y++){
+            Arrays.fill(hist, 0);
+            for(int k=0; k<lineRadii.length; k++){
+                // Rows outside the image repeat the nearest edge row
+                int yy = Math.min(Math.max(y + k - kRadius, 0), height - 1);
+                rowOffset[k] = yy*width;
+                for(int x=-lineRadii[k]; x<=lineRadii[k]; x++){
+                    hist[src[rowOffset[k] + Math.min(Math.max(x, 0), width - 1)] & 0xff]++;
+                    }
+                }
+            // Median and the number of kernel values below it
+            int median = 0, below = 0;
+            while(below + hist[median] <= half){
+                below += hist[median];
+                median++;
+                }
+            dst[y*width] = (byte)median;
+
+            for(int x=1; x<width; x++){
+                for(int k=0; k<lineRadii.length; k++){
+                    int d = lineRadii[k];
+                    int out = src[rowOffset[k] + Math.max(x - d - 1, 0)] & 0xff;
+                    int in = src[rowOffset[k] + Math.min(x + d, width - 1)] & 0xff;
+                    hist[out]--;
+                    if(out < median) below--;
+                    hist[in]++;
+                    if(in < median) below++;
+                    }
+                while(below > half){
+                    median--;
+                    below -= hist[median];
+                    }
+                while(below + hist[median] <= half){
+                    below += hist[median];
+                    median++;
+                    }
+                dst[y*width + x] = (byte)median;
+                }
+            }
+        }
+}
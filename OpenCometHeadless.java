@@ -0,0 +1,313 @@
+/**
+* OpenCometHeadless.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* OpenCometHeadless.java runs OpenComet without any window, for
+* batch runs on machines started with -Djava.awt.headless=true.
+* It writes the CSV results and, if requested, the flattened
+* output images. Options use the ImageJ macro format, e.g.
+*
+* java -Djava.awt.headless=true -cp ij.jar:OpenComet_v2.0.jar OpenCometHeadless
+*     input=/data/plate1 output=/data/results name=plate1
+*     threshold=Huang background=true head=auto threads=16 overlays=false
+*
+* input is a list of files or directories separated by the path
+* separator (':' on Linux and macOS, ';' on Windows). The same
+* options string can be passed to the plugin from a macro.
+* A JSON run report with stage timings is written next to the CSV;
+* summary=true also prints it to the log. quantiles=true adds P5, P25,
+* P75 and P95 rows of the tail measurements to the statistics and
+* writes their sketches to <name>_sketches.txt, which CometSketches
+* merges across runs. mapsize=<MB> sets the size from which uncompressed
+* TIFF files are read through a memory mapping (1024 by default); their
+* output images show the analyzed 8-bit image. tile=<pixels> searches
+* images larger than that for comets in tiles of that size, each read
+* with a halo of halo=<pixels> (256 by default) that must be wider than
+* the largest comet. Every plane of a stack is analyzed; channels=,
+* slices= and frames= select ranges such as 2 or 1-3. channel=red,
+* green or blue analyzes that channel of RGB images instead of the
+* brightest one (channel=auto). median=imagej runs the background
+* median with ImageJ's RankFilters instead of the faster histogram
+* filter (median=histogram), which gives the same result. cache=<dir>
+* keeps the background corrected images in that directory, up to
+* cachesize=<MB> (1024 by default), so that re-runs with other threshold
+* or head finding methods skip the correction. split=true splits blobs
+* of touching comets at the higher thresholds where they come apart.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.process.AutoThresholder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class OpenCometHeadless {
+    private File[] inFiles;
+    private String outDirPath;
+    private String outFileName;
+    private String thresholdMethod;
+    private int cometOptions;
+    private int nThreads;
+    private boolean saveOverlays;
+    private boolean logSummary;
+    private boolean quantiles;
+    private long mapBytes;
+    private int tileSize;
+    private int tileHalo;
+    private int rgbChannel;
+    private int medianEngine;
+    private CometPreprocessCache preprocessCache;
+    private int[] channels, slices, frames;
+
+    public static void main(String[] args){
+        if(args.length == 0){
+            System.err.println(getUsage());
+            System.exit(2);
+        }
+        StringBuilder options = new StringBuilder();
+        for(String arg : args){
+            options.append(arg).append(' ');
+        }
+        System.exit(run(options.toString()) ? 0 : 1);
+    }
+
+    // Parse the options and run the batch; returns false on bad options
+    public static boolean run(String options){
+        OpenCometHeadless runner = new OpenCometHeadless();
+        String error = runner.parseOptions(options);
+        if(error != null){
+            IJ.log("OpenComet: " + error);
+            IJ.log(getUsage());
+            return false;
+        }
+        runner.runBatch();
+        return true;
+    }
+
+    public static String getUsage(){
+        return "Usage: OpenCometHeadless input=<files or directories> output=<directory>\n" +
+               "       [name=OpenComet] [threshold=Triangle] [background=true] [split=false]\n" +
+               "       [head=auto|profile|brightest] [threads=" + CometBatch.defaultThreads() + "]\n" +
+               "       [overlays=false] [summary=false] [quantiles=false] [mapsize=" +
+               (CometBatch.DEFAULT_MAP_BYTES >> 20) + "]\n" +
+               "       [tile=0] [halo=" + CometAnalyzer.DEFAULT_TILE_HALO + "]" +
+               " [channel=auto|red|green|blue]\n" +
+               "       [channels=all] [slices=all] [frames=all] [median=histogram|imagej]\n" +
+               "       [cache=<directory>] [cachesize=" + (CometPreprocessCache.DEFAULT_MAX_BYTES >> 20) + "]";
+    }
+
+    private String parseOptions(String options){
+        if(!options.endsWith(" ")) options += " ";
+
+        String input = Macro.getValue(options, "input", null);
+        if(input == null) return "no input given";
+        inFiles = listInputFiles(input);
+        if(inFiles.length == 0) return "no input files found in " + input;
+
+        String output = Macro.getValue(options, "output", null);
+        if(output == null) return "no output directory given";
+        File outDir = new File(output);
+        if(!outDir.isDirectory() && !outDir.mkdirs()) return "cannot create " + output;
+        outDirPath = outDir.getPath() + File.separator;
+
+        outFileName = Macro.getValue(options, "name", "OpenComet");
+
+        thresholdMethod = Macro.getValue(options, "threshold", "Triangle");
+        if(!Arrays.asList(AutoThresholder.getMethods()).contains(thresholdMethod)){
+            return "unknown threshold method " + thresholdMethod;
+        }
+
+        cometOptions = 0;
+        if(Boolean.parseBoolean(Macro.getValue(options, "background", "true")))
+            cometOptions |= CometAnalyzer.COMETFIND_BGCORRECT;
+        if(Boolean.parseBoolean(Macro.getValue(options, "split", "false")))
+            cometOptions |= CometAnalyzer.COMETFIND_SPLIT;
+        String head = Macro.getValue(options, "head", "auto");
+        if(head.equalsIgnoreCase("auto"))
+            cometOptions |= CometAnalyzer.HEADFIND_AUTO;
+        else if(head.equalsIgnoreCase("profile"))
+            cometOptions |= CometAnalyzer.HEADFIND_PROFILE;
+        else if(head.equalsIgnoreCase("brightest"))
+            cometOptions |= CometAnalyzer.HEADFIND_BRIGHTEST;
+        else
+            return "unknown head finding method " + head;
+
+        try {
+            nThreads = Integer.parseInt(Macro.getValue(options, "threads",
+                                        "" + CometBatch.defaultThreads()));
+        }
+        catch(NumberFormatException ex){
+            return "threads must be a number";
+        }
+        try {
+            mapBytes = Long.parseLong(Macro.getValue(options, "mapsize",
+                                      "" + (CometBatch.DEFAULT_MAP_BYTES >> 20))) << 20;
+        }
+        catch(NumberFormatException ex){
+            return "mapsize must be a number of megabytes";
+        }
+        try {
+            tileSize = Integer.parseInt(Macro.getValue(options, "tile", "0"));
+            tileHalo = Integer.parseInt(Macro.getValue(options, "halo",
+                                        "" + CometAnalyzer.DEFAULT_TILE_HALO));
+        }
+        catch(NumberFormatException ex){
+            return "tile and halo must be numbers of pixels";
+        }
+        if(tileSize < 0 || tileHalo < 0) return "tile and halo must not be negative";
+        String channel = Macro.getValue(options, "channel", "auto");
+        rgbChannel = Arrays.asList("auto", "red", "green", "blue").indexOf(channel.toLowerCase());
+        if(rgbChannel < 0) return "unknown channel " + channel;
+        String median = Macro.getValue(options, "median", "histogram");
+        if(median.equalsIgnoreCase("histogram"))
+            medianEngine = CometAnalyzer.MEDIAN_HISTOGRAM;
+        else if(median.equalsIgnoreCase("imagej"))
+            medianEngine = CometAnalyzer.MEDIAN_RANKFILTERS;
+        else
+            return "unknown median filter " + median;
+        String cacheDir = Macro.getValue(options, "cache", null);
+        if(cacheDir != null){
+            long cacheBytes;
+            try {
+                cacheBytes = Long.parseLong(Macro.getValue(options, "cachesize",
+                                            "" + (CometPreprocessCache.DEFAULT_MAX_BYTES >> 20))) << 20;
+            }
+            catch(NumberFormatException ex){
+                return "cachesize must be a number of megabytes";
+            }
+            preprocessCache = new CometPreprocessCache(new File(cacheDir), cacheBytes);
+        }
+        try {
+            channels = CometBatch.parseRange(Macro.getValue(options, "channels", null));
+            slices = CometBatch.parseRange(Macro.getValue(options, "slices", null));
+            frames = CometBatch.parseRange(Macro.getValue(options, "frames", null));
+        }
+        catch(NumberFormatException ex){
+            return "channels, slices and frames must be ranges such as 2 or 1-3";
+        }
+        saveOverlays = Boolean.parseBoolean(Macro.getValue(options, "overlays", "false"));
+        logSummary = Boolean.parseBoolean(Macro.getValue(options, "summary", "false"));
+        quantiles = Boolean.parseBoolean(Macro.getValue(options, "quantiles", "false"));
+        return null;
+    }
+
+    // Expand the input list; directories contribute their files in name order
+    private static File[] listInputFiles(String input){
+        ArrayList<File> files = new ArrayList<File>();
+        for(String path : input.split(File.pathSeparator)){
+            if(path.length() == 0) continue;
+            File f = new File(path);
+            if(f.isDirectory()){
+                File[] dirFiles = f.listFiles();
+                if(dirFiles == null) continue;
+                Arrays.sort(dirFiles);
+                for(File dirFile : dirFiles){
+                    if(dirFile.isFile() && !dirFile.isHidden()) files.add(dirFile);
+                }
+            }
+            else if(f.isFile()){
+                files.add(f);
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    private void runBatch(){
+        final CometResultStore Comets = new CometResultStore();
+        final CometBatch batch = new CometBatch(cometOptions, thresholdMethod, nThreads);
+        batch.setMapBytes(mapBytes);
+        batch.setTiling(tileSize, tileHalo);
+        batch.setChannel(rgbChannel);
+        batch.setMedianEngine(medianEngine);
+        batch.setPreprocessCache(preprocessCache);
+        batch.setPlanes(channels, slices, frames);
+        final CometCsvWriter csv;
+        try {
+            csv = new CometCsvWriter(outDirPath + outFileName + ".csv");
+        }
+        catch(IOException ex){
+            IJ.log("OpenComet: " + ex);
+            return;
+        }
+        IJ.log("Analyzing " + inFiles.length + " images on " +
+               batch.getThreads() + " threads");
+        long startTime = System.currentTimeMillis();
+
+        batch.run(inFiles, new CometBatch.Listener(){
+            public void imageAnalyzed(CometBatch.ImageResult result){
+                if(saveOverlays){
+                    long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                    ImagePlus img_out = CometOutput.makeOutputImage(result.comets,
+                                                    result.getImage(), result.imageKey);
+                    if(img_out != null){
+                        CometOutput.saveOutputImage(img_out, outDirPath);
+                    }
+                    result.metrics.record(CometMetrics.OUTPUT_IMAGE, t0, a0);
+                }
+                // Nothing is displayed, so the pixels are not needed any more
+                result.flush();
+            }
+            public void imageCompleted(CometBatch.ImageResult result){
+                if(!result.isOpened()){
+                    IJ.log("Could not open " + result.inFile.getName() +
+                           ", unsupported format");
+                    return;
+                }
+                if(result.comets != null && result.comets.length > 0){
+                    // Write the rows now and keep only the measurements
+                    long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                    CometResultStore.Entry entry =
+                        Comets.put(result.index, result.imageKey, null, result.comets);
+                    csv.writeEntry(Comets.getTable(), entry);
+                    batch.getMetrics().record(CometMetrics.CSV, t0, a0);
+                }
+            }
+            public void progress(int filesDone, int filesTotal, long etaNanos){
+                IJ.log(filesDone + " of " + filesTotal + " images analyzed, about " +
+                       (etaNanos + 500000000L)/1000000000L + " s left");
+            }
+        });
+
+        long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+        CometStatistics cometStats = csv.writeStatistics(Comets.getTable(), quantiles);
+        try {
+            csv.close();
+            if(quantiles){
+                cometStats.getSketches().write(outDirPath + outFileName + "_sketches.txt");
+            }
+        }
+        catch(IOException ex){
+            IJ.log("OpenComet: " + ex);
+        }
+        batch.getMetrics().record(CometMetrics.CSV, t0, a0);
+        batch.getMetrics().printReport(outDirPath + outFileName + "_report.json");
+        if(logSummary){
+            IJ.log(batch.getMetrics().getSummary());
+        }
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        IJ.log("Analyzed " + inFiles.length + " images in " + seconds + " s, results in " +
+               outDirPath + outFileName + ".csv");
+    }
+}
@@ -36,32 +36,37 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 //import CometStatistics.CometAnalyzer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Arrays;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 
-public class OpenComet_ implements PlugIn, MouseListener {
+public class OpenComet_ implements PlugIn, MouseListener, ImageListener {
     //private JLabel inFilesLabel, outDirLabel;
     private JLabel inFilesStatusLabel, outDirStatusLabel;
     private JButton inFilesButton, outDirButton, runButton;
-    private JButton updateOutputButton;
-    private JButton liveButton;
+    private JButton updateOutputButton, compactOutputButton;
+    private JButton liveButton, cancelButton;
     private ActionListener inFilesButtonLis, outDirButtonLis, runButtonLis;
-    private ActionListener updateOutputButtonLis;
-    private ActionListener liveButtonLis;
+    private ActionListener updateOutputButtonLis, compactOutputButtonLis;
+    private ActionListener liveButtonLis, previewSettingsLis, cancelButtonLis;
     private JFileChooser inFileChooser, outDirChooser;
     private JTextField outFileNameField;
     private JCheckBox bgCorrectCheck;
+    private JCheckBox logReportCheck;
+    private JCheckBox cacheCheck;
+    private JCheckBox splitCheck;
     private JRadioButton headFindingAuto, headFindingProfile;
     private JRadioButton headFindingBrightest;
     private JComboBox<String> thresholdMethodCombo;
+    private JSpinner threadsSpinner;
+    private JTextArea reviewSummaryArea;
+    private JLabel progressLabel;
     private int cometOptions;
 
     private static Color labelInvalidColor = new Color(200,0,0);
@@ -72,18 +77,30 @@ public class OpenComet_ implements PlugIn, MouseListener {
     String outDirPath;
     String outFileName;
 
-    private static Color cometValidColor = Color.red;
-    private static Color cometInvalidColor = Color.gray;
-    private static Color cometOutlierColor = Color.orange;
-    private static Color cometColor = Color.yellow;
-    private static Color headColor = Color.green;
-    private static Color tailColor = Color.blue;
-
-    private HashMap<ImagePlus,Comet[]> Comets;
+    private CometResultStore Comets;
+    // Group statistics kept up to date as comets are clicked
+    private CometLiveStatistics liveStats;
+    // Status changes made in the review, written by Update Output
+    private CometReviewJournal reviewJournal;
+    // Live preview of the comets in the active image, or null
+    private CometPreview preview;
+    // Runs are analyzed off the event thread, and stopped through runCancel
+    private ExecutorService runExecutor;
+    private final AtomicBoolean runCancel = new AtomicBoolean();
+    private volatile boolean running;
 
     public OpenComet_(){}
 
     public void run(String arg) {
+        // With an options string (from a macro or the arg) run without any window
+        String options = Macro.getOptions();
+        if(options == null && arg != null && arg.trim().length() > 0){
+            options = arg;
+        }
+        if(options != null){
+            OpenCometHeadless.run(options);
+            return;
+        }
         IJ.log("Welcome to OpenComet v2.0 by Josiah Murray!");
         IJ.log("This code is adapted from OpenComet v1.3.1 by Benjamin Gyori.");
         IJ.log("Following analysis, click on a comet to cycle through the following states: ");
@@ -96,16 +113,20 @@ public class OpenComet_ implements PlugIn, MouseListener {
         IJ.log("Opencomet v1.3.1, uses 'Huang' for thresholding, but 'Triangle' often works better.");
         makeLayout();
         updateOutputButton.setEnabled(false);
+        compactOutputButton.setEnabled(false);
     }
 
     private void runOnInput(int type){
         // Make an instance of the comet analyzer class
         CometAnalyzer cometAnalyzer = new CometAnalyzer();
-        Comets = new HashMap<ImagePlus,Comet[]>();
+        Comets = new CometResultStore();
+        liveStats = new CometLiveStatistics(Comets.getTable());
         cometOptions = 0;
         // Setup comet analysis options
         if(bgCorrectCheck.isSelected())
             cometOptions |= CometAnalyzer.COMETFIND_BGCORRECT;
+        if(splitCheck.isSelected())
+            cometOptions |= CometAnalyzer.COMETFIND_SPLIT;
         if(headFindingAuto.isSelected())
             cometOptions |= CometAnalyzer.HEADFIND_AUTO;
         if(headFindingProfile.isSelected())
@@ -115,342 +136,249 @@ public class OpenComet_ implements PlugIn, MouseListener {
 
         // Set the threshold method
         cometAnalyzer.setThresholdMethod((String)thresholdMethodCombo.getSelectedItem());
+        // Re-runs with other thresholds reuse the background correction
+        CometPreprocessCache preprocessCache =
+                cacheCheck.isSelected() ? CometPreprocessCache.getDefault() : null;
+        cometAnalyzer.setPreprocessCache(preprocessCache);
 
         String tmpText = outFileNameField.getText();
         if((tmpText!=null) && (tmpText.length()>1)){
             outFileName = tmpText;
         }
+        reviewJournal = new CometReviewJournal(outDirPath + outFileName + "_review.csv",
+                                               outDirPath + outFileName + "_statistics.csv");
 
         IJ.log(cometOptions+"");
 
+        // Rows are written as each image completes, the statistics at the end
+        final CometCsvWriter csv;
+        try {
+            csv = new CometCsvWriter(outDirPath + outFileName + ".csv");
+        }
+        catch(IOException ex){
+            IJ.log(ex.toString());
+            return;
+        }
+        // Forget the comet shapes of output images when they are closed
+        ImagePlus.removeImageListener(this);
+        ImagePlus.addImageListener(this);
+
+        // Settings are read here, on the event thread; the analysis runs on
+        // the run thread so the windows stay responsive and can cancel it
+        final int runType = type;
+        final CometAnalyzer runAnalyzer = cometAnalyzer;
+        final CometPreprocessCache runCache = preprocessCache;
+        final String runThresholdMethod = (String)thresholdMethodCombo.getSelectedItem();
+        final int nThreads = ((Number)threadsSpinner.getValue()).intValue();
+        final boolean logReport = logReportCheck.isSelected();
+        runCancel.set(false);
+        running = true;
+        runButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        progressLabel.setText("Starting");
+        getRunExecutor().execute(new Runnable(){
+            public void run(){
+                try {
+                    analyzeInput(runType, runAnalyzer, runCache, runThresholdMethod,
+                                 nThreads, logReport, csv);
+                }
+                finally {
+                    SwingUtilities.invokeLater(new Runnable(){
+                        public void run(){
+                            running = false;
+                            cancelButton.setEnabled(false);
+                            progressLabel.setText(runCancel.get() ? "Cancelled" : "Done");
+                            updateOutputButton.setEnabled(true);
+                            compactOutputButton.setEnabled(true);
+                            updateReviewSummary();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // The analysis of a run, on the run thread. Images completed before a
+    // cancel are stored and written with the statistics.
+    private void analyzeInput(int type, CometAnalyzer cometAnalyzer,
+                              CometPreprocessCache preprocessCache, String thresholdMethod,
+                              int nThreads, boolean logReport, final CometCsvWriter csv){
+        CometMetrics runMetrics;
         if(type==0) {
-        // Open each input image and run comet analysis
-            // Iterate over each input file
-            for(int i=0;i<inFiles.length;i++){
-                // Try to open file as image
-                ImagePlus imp = IJ.openImage(inFiles[i].getPath());
-
-                // If image could be opened, run comet analysis
-                if(imp!=null){
-                    String imageKey =  inFiles[i].getName();
-
-                    IJ.log("Run started, image key: "+ imageKey);
-
-                    Comet[] cometsOut =
-                        cometAnalyzer.cometAnalyzerRun(imp, cometOptions);
-                    IJ.log("Run complete, image key: "+ imageKey);
-                    storeComets(cometsOut,imp,imageKey);
-                    // if(cometsOut!=null && cometsOut.length>0){
-                        // ImageProcessor ip = imp.getProcessor();
-                        // int imgType = imp.getType();
-                        // ColorProcessor ip_out = null;
-                        // if(imgType == 0){
-                            // TypeConverter t = new TypeConverter(ip,false);
-                            // ip_out = (ColorProcessor)t.convertToRGB();
-                            // }
-                        //RGB
-                        // else if(imgType == 4){
-                            // ip_out = (ColorProcessor)(ip.duplicate());
-                            // }
-
-                        // String imgOutFileName = imageKey +"_out.tif";
-                        // ImagePlus img_out = new ImagePlus(imgOutFileName,ip_out);
-                        // Comets.put(img_out, cometsOut);
-                        // for(int j=0;j<cometsOut.length;j++){
-                            // if(cometsOut[j].status==Comet.VALID)
-                                // printArray(cometsOut[j].cometProfile);
-                        // }
-                        // Overlay cometOverlay = new Overlay();
-                        // drawComets(ip_out, cometOverlay, cometsOut);
-                        // img_out.setOverlay(cometOverlay);
-                        // img_out.show();
-                        // img_out.getCanvas().addMouseListener(this);
-                        // ImagePlus img_out_save = img_out.flatten();
-                        // IJ.save(img_out_save, outDirPath + imgOutFileName);
-                        // }
-                    // else {
-                        // IJ.log("No comets stored");
-                    // }
-                 }
-                else {
-                    IJ.log("Could not open " + inFiles[i].getName() +
-                           ", unsupported format");
+        // Open and analyze the input images on the batch thread pool
+            final CometBatch batch = new CometBatch(cometOptions, thresholdMethod, nThreads);
+            batch.setPreprocessCache(preprocessCache);
+            batch.setCancelFlag(runCancel);
+            IJ.log("Analyzing " + inFiles.length + " images on " +
+                   batch.getThreads() + " threads");
+            batch.run(inFiles, new CometBatch.Listener(){
+                public void imageAnalyzed(CometBatch.ImageResult result){
+                    long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                    result.output = makeOutputImage(result.comets,
+                                                    result.getImage(), result.imageKey);
+                    result.metrics.record(CometMetrics.OUTPUT_IMAGE, t0, a0);
+                    // Only the output image is shown
+                    result.flush();
+                }
+                public void imageCompleted(CometBatch.ImageResult result){
+                    if(!result.isOpened()){
+                        IJ.log("Could not open " + result.inFile.getName() +
+                               ", unsupported format");
+                        return;
                     }
+                    storeComets(result.index, result.comets, result.output,
+                                csv, batch.getMetrics());
+                }
+                public void progress(int filesDone, int filesTotal, long etaNanos){
+                    IJ.showProgress(filesDone, filesTotal);
+                    showProgress(filesDone + " of " + filesTotal + " images, about " +
+                                 formatSeconds(etaNanos) + " left");
                 }
+            });
+            runMetrics = batch.getMetrics();
             }
             else {
+                runMetrics = new CometMetrics("image");
+                long startTime = System.nanoTime();
                 ImageWindow imw = WindowManager.getCurrentWindow();
                 if(imw!=null){
+                    // The analysis neither changes nor closes the image, so
+                    // the output is drawn from it without duplicating it
                     ImagePlus img = imw.getImagePlus();
-                    ImagePlus img2 = imw.getImagePlus().duplicate();
                     if(img!=null){
-                        Comet[] cometsOut = 
-                            cometAnalyzer.cometAnalyzerRun(img,cometOptions);
-                        if(cometsOut==null || cometsOut.length==0){
-                            IJ.log("No comets found.");
+                        cometAnalyzer.setMetrics(runMetrics);
+                        cometAnalyzer.setCancelFlag(runCancel);
+                        Comet[] cometsOut = null;
+                        try {
+                            cometsOut = cometAnalyzer.cometAnalyzerRun(img,cometOptions);
                         }
-                        else {
-                            IJ.log("Number of comets found: "+cometsOut.length);
+                        catch(CometAnalyzer.CancelledException ex){
+                            IJ.log("Analysis cancelled");
+                            img = null;
+                        }
+                        if(img!=null){
+                            if(cometsOut==null || cometsOut.length==0){
+                                IJ.log("No comets found.");
+                            }
+                            else {
+                                IJ.log("Number of comets found: "+cometsOut.length);
+                            }
+                            String imageKey = outFileName+"_image";
+                            long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                            ImagePlus img_out = makeOutputImage(cometsOut,img,imageKey);
+                            runMetrics.record(CometMetrics.OUTPUT_IMAGE, t0, a0);
+                            storeComets(0, cometsOut, img_out, csv, runMetrics);
                         }
-                        storeComets(cometsOut,img2,outFileName+"_image");
                         }
                     }
+                CometArena.clearAll();
+                runMetrics.setWallNanos(System.nanoTime() - startTime);
                 }
 
-            printComets(outFileName);
-            updateOutputButton.setEnabled(true);
-            runButton.setEnabled(false);
+            long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+            csv.writeStatistics(Comets.getTable());
+            try {
+                csv.close();
             }
-
-        private void storeComets(Comet[] cometsOut, ImagePlus imp, String imageKey){
-            ImageProcessor ip = imp.getProcessor();
-            int imgType = imp.getType();
-            ColorProcessor ip_out = null;
-            if(imgType == ImagePlus.GRAY8){
-                TypeConverter t = new TypeConverter(ip,false);
-                ip_out = (ColorProcessor)t.convertToRGB();
+            catch(IOException ex){
+                IJ.log(ex.toString());
             }
-            else if (imgType == ImagePlus.GRAY16 || imgType == ImagePlus.GRAY32){
-                ImageProcessor ip_temp = ip.convertToByte(true); 
-                TypeConverter t = new TypeConverter(ip_temp,false);
-                ip_out = (ColorProcessor)t.convertToRGB();
+            runMetrics.record(CometMetrics.CSV, t0, a0);
+            runMetrics.printReport(outDirPath + outFileName + "_report.json");
+            if(logReport){
+                IJ.log(runMetrics.getSummary());
             }
-            else if(imgType == ImagePlus.COLOR_RGB){
-                ip_out = (ColorProcessor)(ip.duplicate());
+            IJ.showProgress(1.0);
             }
-            else {
-                IJ.log("Unhandled image type: "+imgType);
-                return;  // Exit if we can't handle the image type
-            }
-
-            String imgOutFileName = imageKey +"_out.tif";
-            ImagePlus img_out = new ImagePlus(imgOutFileName,ip_out);
 
-            if(cometsOut != null && cometsOut.length > 0){
-                // Check each comet's ROIs before storing
-                for(int i = 0; i < cometsOut.length; i++) {
-                    if(cometsOut[i] == null) continue;
-                    
-                    // For INVALID_NO_HEAD comets, ensure ROIs are null
-                    if(cometsOut[i].status == Comet.INVALID_NO_HEAD) {
-                        cometsOut[i].headRoi = null;
-                        continue;
-                    }
-                }
-                
-                Comets.put(img_out, cometsOut);
-
-                for(int j=0; j<cometsOut.length; j++){
-                    if(cometsOut[j] == null) continue;
-                    
-                    // Skip invalid comets
-                    if(cometsOut[j].status == Comet.INVALID_NO_HEAD){
-                        continue;
-                    }
-                    if(cometsOut[j].status == Comet.VALID && cometsOut[j].cometProfile != null) {
-                        printArray(cometsOut[j].cometProfile);
+        // Single thread that runs the analyses, one at a time
+        private synchronized ExecutorService getRunExecutor(){
+            if(runExecutor == null){
+                runExecutor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+                    public Thread newThread(Runnable r){
+                        Thread t = new Thread(r, "OpenComet run");
+                        t.setDaemon(true);
+                        return t;
                     }
-                }
-
-                Overlay cometOverlay = new Overlay();
-                drawComets(ip_out, cometOverlay, cometsOut);
-                img_out.setOverlay(cometOverlay);
-                
-                // Show the interactive version
-                img_out.show();
-                img_out.getCanvas().addMouseListener(this);
-                
-                // Save a flattened version
-                ImagePlus img_out_save = img_out.flatten();
-                IJ.save(img_out_save, outDirPath + imgOutFileName);
-            } else {
-                IJ.log("No comets in image stored.");
-                img_out.show();
-                img_out.getCanvas().addMouseListener(this);
-                IJ.save(img_out, outDirPath + imgOutFileName);
+                });
             }
+            return runExecutor;
         }
 
-    private void drawComets(ImageProcessor ip, Overlay overlay, Comet[] comets){
-        for(int i=0;i<comets.length;i++){
-            if(comets[i].status == Comet.INVALID_NO_HEAD){
-                continue;
-            }
-            if(comets[i].status == Comet.OUTLIER){
-                if(comets[i].cometRoi != null) {
-                    comets[i].cometRoi.setStrokeColor(cometOutlierColor);
-                    overlay.add(comets[i].cometRoi);
+        private void showProgress(final String text){
+            SwingUtilities.invokeLater(new Runnable(){
+                public void run(){
+                    progressLabel.setText(text);
                 }
-                if(comets[i].headRoi != null) {
-                    comets[i].headRoi.setStrokeColor(cometOutlierColor);
-                    overlay.add(comets[i].headRoi);
-                }
-
-                // Add ID text to overlay with larger font and better positioning
-                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
-                                          comets[i].y + comets[i].height/2, 
-                                          "" + comets[i].id,
-                                          new Font("Arial", Font.BOLD, 24));
-                textRoi.setStrokeColor(cometOutlierColor);
-                overlay.add(textRoi);
-
-                // Add profile plot for outliers only if they have valid profiles
-                if (comets[i].cometProfile != null && comets[i].profileMax > 0) {
-                    ImageProcessor ipProfile = getCometProfilePlot(comets[i]);
-                    ip.copyBits(ipProfile, comets[i].x,
-                            comets[i].y,Blitter.COPY_TRANSPARENT);
-                }
-            }
-            else if(comets[i].status == Comet.INVALID_SIZE){
-                if(comets[i].cometRoi != null) {
-                    comets[i].cometRoi.setStrokeColor(cometInvalidColor);
-                    overlay.add(comets[i].cometRoi);
-                }
-                if(comets[i].headRoi != null) {
-                    comets[i].headRoi.setStrokeColor(cometInvalidColor);
-                    overlay.add(comets[i].headRoi);
-                }
-
-                // Add ID text to overlay with larger font and better positioning
-                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
-                                          comets[i].y + comets[i].height/2, 
-                                          ""+comets[i].id,
-                                          new Font("Arial", Font.BOLD, 24));
-                textRoi.setStrokeColor(cometInvalidColor);
-                overlay.add(textRoi);
-            }
-            else if(comets[i].status == Comet.VALID){
-                if(comets[i].cometRoi != null) {
-                    comets[i].cometRoi.setStrokeColor(cometValidColor);
-                    overlay.add(comets[i].cometRoi);
-                }
-                if(comets[i].headRoi != null) {
-                    comets[i].headRoi.setStrokeColor(cometValidColor);
-                    overlay.add(comets[i].headRoi);
-                }
-
-                // Add ID text to overlay with larger font and better positioning
-                TextRoi textRoi = new TextRoi(comets[i].x + comets[i].width + 5,
-                                          comets[i].y + comets[i].height/2, 
-                                          ""+comets[i].id,
-                                          new Font("Arial", Font.BOLD, 24));
-                textRoi.setStrokeColor(cometValidColor);
-                overlay.add(textRoi);
-
-                // Add profile plot for valid comets only if they have valid profiles
-                if (comets[i].cometProfile != null && comets[i].profileMax > 0) {
-                    ImageProcessor ipProfile = getCometProfilePlot(comets[i]);
-                    ip.copyBits(ipProfile, comets[i].x,
-                            comets[i].y,Blitter.COPY_TRANSPARENT);
-                }
-            }
+            });
         }
-    }
 
-    private ImageProcessor getCometProfilePlot(Comet comet){
-        ImageProcessor ip = new ColorProcessor(comet.width, comet.height);
-        ip.invert();
+        private static String formatSeconds(long nanos){
+            long s = (nanos + 500000000L)/1000000000L;
+            return (s >= 60) ? (s/60) + " min " + (s%60) + " s" : s + " s";
+        }
 
-        if (comet.profileMax > 0) {
-            double heightStep = comet.height / comet.profileMax;
-            
-            // Only draw profiles if they exist
-            if (comet.cometProfile != null) {
-                drawProfilePlot(ip, comet.cometProfile, cometColor, heightStep);
-            }
-            if (comet.headProfile != null) {
-                drawProfilePlot(ip, comet.headProfile, headColor, heightStep);
-            }
-            if (comet.tailProfile != null) {
-                drawProfilePlot(ip, comet.tailProfile, tailColor, heightStep);
+        // Draw the comets on an RGB copy of the image and save it flattened.
+        // Runs on batch worker threads, so it must not touch any window.
+        private ImagePlus makeOutputImage(Comet[] cometsOut, ImagePlus imp, String imageKey){
+            ImagePlus img_out = CometOutput.makeOutputImage(cometsOut, imp, imageKey);
+            if(img_out != null){
+                CometOutput.saveOutputImage(img_out, outDirPath);
             }
+            return img_out;
         }
 
-        return ip;
-    }
-
-    private void drawProfilePlot(ImageProcessor ip, double[] profile,
-                                 Color col, double heightStep){
-        int height = ip.getHeight();
-        int width = ip.getWidth();
-        int x1,x2,y1,y2;
-        ip.setColor(col);
-        for(int x=0;x<width-1;x++){
-            x1 = x; x2 = x+1;
-            y1 = (int)((height - 1) - profile[x]*heightStep);
-            y2 = (int)((height - 1) - profile[x+1]*heightStep);
-            ip.drawLine(x1,y1,x2,y2);
+        private void storeComets(int index, Comet[] cometsOut, ImagePlus img_out,
+                                 CometCsvWriter csv, CometMetrics metrics){
+            if(img_out == null) return;
+            if(cometsOut != null && cometsOut.length > 0){
+                String imgTitle = img_out.getTitle();
+                String imageKey = imgTitle.substring(0, imgTitle.lastIndexOf('_'));
+                long t0 = System.nanoTime(), a0 = CometMetrics.allocatedBytes();
+                CometResultStore.Entry entry = Comets.put(index, imageKey, img_out, cometsOut);
+                csv.writeEntry(Comets.getTable(), entry);
+                metrics.record(CometMetrics.CSV, t0, a0);
             }
+            // Show the interactive version
+            img_out.show();
+            img_out.getCanvas().addMouseListener(this);
         }
 
     private void printComets(String outFileName){
-        try {
-            PrintWriter outPrintWriter = new PrintWriter(outDirPath + outFileName + ".csv");
-            String sep = ",";
-            
-            // Helper function to escape CSV values
-            Function<String, String> escapeCsv = (String value) -> {
-                if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
-                    return "\"" + value.replace("\"", "\"\"") + "\"";
-                }
-                return value;
-            };
-            
-            // Print header
-            String[] headers = {"Image", "ID", "Status", "Length", "HeadLength", "TailLength", 
-                              "HeadArea", "TailArea", "CometArea", "HeadIntensity", "TailIntensity", 
-                              "CometIntensity", "HeadDNA", "TailDNA", "CometDNA", "HeadDNA%", 
-                              "TailDNA%", "TailMoment", "TailOliveMoment"};
-            outPrintWriter.println(String.join(sep, Arrays.stream(headers).map(escapeCsv).collect(Collectors.toList())));
-
-            for (Map.Entry<ImagePlus,Comet[]> element : Comets.entrySet()) {
-                ImagePlus imp = element.getKey();
-                String imgTitle = imp.getTitle();
-                IJ.log("Image title: "+imgTitle);
-                int endIdx = imgTitle.lastIndexOf('_');
-                if(endIdx > 0){
-                    String imageKey = imgTitle.substring(0,endIdx);
-                    Comet[] imageComets = element.getValue();
-                    for(int i=0;i<imageComets.length;i++){
-                        // Include VALID, INVALID_SIZE, and OUTLIER comets
-                        if(imageComets[i].status == Comet.VALID || 
-                           imageComets[i].status == Comet.INVALID_SIZE ||
-                           imageComets[i].status == Comet.OUTLIER){
-                            String outstr = escapeCsv.apply(imageKey) + sep;
-                            outstr += imageComets[i].getMeasurementString(sep);
-                            outPrintWriter.println(outstr);
-                        }
-                    }
-                }
-            }
-
-            // Calculate statistics for valid comets
-            CometStatistics cometStats = new CometStatistics(Comets,Comet.VALID);
-            String outstr = cometStats.getStatisticsString(sep,"normal");
-            outPrintWriter.print(outstr);
-
-            // Calculate statistics for valid + outlier comets
-            cometStats = new CometStatistics(Comets,Comet.VALID|Comet.OUTLIER);
-            outstr = cometStats.getStatisticsString(sep,"normal+outlier");
-            outPrintWriter.print(outstr);
-
-            // Calculate statistics for valid + invalid_size comets
-            cometStats = new CometStatistics(Comets,Comet.VALID|Comet.INVALID_SIZE);
-            outstr = cometStats.getStatisticsString(sep,"normal+invalid_size");
-            outPrintWriter.print(outstr);
-
-            // Calculate statistics for all measurable comets
-            cometStats = new CometStatistics(Comets,Comet.VALID|Comet.INVALID_SIZE|Comet.OUTLIER);
-            outstr = cometStats.getStatisticsString(sep,"all_measurable");
-            outPrintWriter.print(outstr);
+        CometOutput.printComets(Comets, outDirPath + outFileName + ".csv", liveStats);
+    }
 
-            outPrintWriter.close();
+    // Write the status changes since the last update and the new statistics
+    private void updateOutput(){
+        try {
+            int changes = reviewJournal.getPendingCount();
+            reviewJournal.flush(liveStats);
+            IJ.log(changes + " status changes added to " + reviewJournal.getJournalPath());
         }
-        catch (Exception ex) {
+        catch(IOException ex){
             IJ.log(ex.toString());
         }
     }
 
+    // Show the comets found with the current settings in the previewed image
+    private void updatePreview(){
+        if(preview == null) return;
+        preview.update((String)thresholdMethodCombo.getSelectedItem(),
+                       bgCorrectCheck.isSelected(), splitCheck.isSelected(),
+                       cacheCheck.isSelected() ? CometPreprocessCache.getDefault() : null);
+    }
+
+    private void stopPreview(){
+        if(preview == null) return;
+        preview.stop();
+        preview = null;
+        liveButton.setText("Live Preview");
+    }
+
+    private void updateReviewSummary(){
+        if(liveStats != null) reviewSummaryArea.setText(liveStats.getSummary());
+    }
+
     private void makeLayout(){
         // Create the main panel
         JPanel mainPanel = new JPanel();
@@ -471,6 +399,18 @@ public class OpenComet_ implements PlugIn, MouseListener {
         bgCorrectCheck.setSelected(true);
         mainPanel.add(bgCorrectCheck);
 
+        // Add preprocessing cache checkbox
+        cacheCheck = new JCheckBox("Cache Background Correction");
+        mainPanel.add(cacheCheck);
+
+        // Add touching comet splitting checkbox
+        splitCheck = new JCheckBox("Split Touching Comets");
+        mainPanel.add(splitCheck);
+
+        // Add run report checkbox
+        logReportCheck = new JCheckBox("Show Run Report in Log");
+        mainPanel.add(logReportCheck);
+
         // Add head finding options
         JPanel headFindingPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         headFindingPanel.add(new JLabel("Head Finding Method:"));
@@ -516,14 +456,33 @@ public class OpenComet_ implements PlugIn, MouseListener {
         JPanel runPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         runButton = new JButton("Run Analysis");
         runPanel.add(runButton);
+        liveButton = new JButton("Live Preview");
+        runPanel.add(liveButton);
+        runPanel.add(new JLabel("Threads:"));
+        threadsSpinner = new JSpinner(new SpinnerNumberModel(
+                CometBatch.defaultThreads(), 1, 256, 1));
+        runPanel.add(threadsSpinner);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        runPanel.add(cancelButton);
+        progressLabel = new JLabel(" ");
+        runPanel.add(progressLabel);
         mainPanel.add(runPanel);
 
         // Add update output button
         JPanel updatePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         updateOutputButton = new JButton("Update Output");
         updatePanel.add(updateOutputButton);
+        compactOutputButton = new JButton("Compact Output");
+        updatePanel.add(compactOutputButton);
         mainPanel.add(updatePanel);
 
+        // Add the summary of the groups, updated while comets are reviewed
+        reviewSummaryArea = new JTextArea(5, 80);
+        reviewSummaryArea.setEditable(false);
+        reviewSummaryArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        mainPanel.add(new JScrollPane(reviewSummaryArea));
+
         // Create the frame
         JFrame frame = new JFrame("OpenComet v2.0");
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -593,6 +552,48 @@ public class OpenComet_ implements PlugIn, MouseListener {
         };
         runButton.addActionListener(runButtonLis);
 
+        cancelButtonLis = new ActionListener(){
+            public void actionPerformed(ActionEvent e){
+                // The run stops at the next stage or comet of each image
+                runCancel.set(true);
+                cancelButton.setEnabled(false);
+                progressLabel.setText("Cancelling");
+            }
+        };
+        cancelButton.addActionListener(cancelButtonLis);
+
+        liveButtonLis = new ActionListener(){
+            public void actionPerformed(ActionEvent e){
+                if(preview != null){
+                    stopPreview();
+                    return;
+                }
+                ImagePlus imp = WindowManager.getCurrentImage();
+                if(imp == null){
+                    IJ.showMessage("Please open an image to preview");
+                    return;
+                }
+                // The preview ends when its image is closed
+                ImagePlus.removeImageListener(OpenComet_.this);
+                ImagePlus.addImageListener(OpenComet_.this);
+                preview = new CometPreview(imp);
+                liveButton.setText("Stop Preview");
+                updatePreview();
+            }
+        };
+        liveButton.addActionListener(liveButtonLis);
+
+        // Settings the preview depends on
+        previewSettingsLis = new ActionListener(){
+            public void actionPerformed(ActionEvent e){
+                updatePreview();
+            }
+        };
+        thresholdMethodCombo.addActionListener(previewSettingsLis);
+        bgCorrectCheck.addActionListener(previewSettingsLis);
+        splitCheck.addActionListener(previewSettingsLis);
+        cacheCheck.addActionListener(previewSettingsLis);
+
         updateOutputButtonLis = new ActionListener(){
             public void actionPerformed(ActionEvent e){
                 String tmpText = outFileNameField.getText();
@@ -600,13 +601,24 @@ public class OpenComet_ implements PlugIn, MouseListener {
                     IJ.showMessage("Please enter output filename");
                     return;
                 }
-                printComets(outFileName + "_update");
+                updateOutput();
             }
         };
         updateOutputButton.addActionListener(updateOutputButtonLis);
+
+        compactOutputButtonLis = new ActionListener(){
+            public void actionPerformed(ActionEvent e){
+                // The full CSV with the reviewed statuses; the journal is kept
+                updateOutput();
+                printComets(outFileName + "_update");
+            }
+        };
+        compactOutputButton.addActionListener(compactOutputButtonLis);
     }
 
     public void mousePressed (MouseEvent e) {
+        // The comet table is written by the run; review starts when it ends
+        if(running) return;
         int x = e.getX();
         int y = e.getY();
         ImageCanvas canvas = (ImageCanvas)e.getSource();
@@ -614,92 +626,75 @@ public class OpenComet_ implements PlugIn, MouseListener {
         x = canvas.offScreenX(x);
         y = canvas.offScreenY(y);
         IJ.log(x+","+y);
-        Comet comet = findClickedComet(imp, x, y);
+        CometResultStore.Entry entry = Comets.get(imp);
+        int i = findClickedComet(entry, x, y);
+        Comet comet = (i < 0) ? null : entry.comets[i];
         if(comet != null && comet.cometRoi != null && comet.oldRoi != null){
             IJ.log("Comet found");
+            // The status lives in the comet table, the comet only has the shapes;
+            // liveStats updates it together with the group statistics
+            CometTable table = Comets.getTable();
+            int row = entry.firstRow + i;
+            int status = table.getStatus(row);
             // Cycle through states: VALID -> INVALID_SIZE -> OUTLIER -> INVALID_SIZE
-            if(comet.status == Comet.VALID) {
+            if(status == Comet.VALID) {
                 // VALID -> INVALID_SIZE
-                comet.status = Comet.INVALID_SIZE;
+                liveStats.setStatus(row, Comet.INVALID_SIZE);
                 if(comet.cometRoi != null) comet.cometRoi.setStrokeColor(Color.gray);
                 if(comet.oldRoi != null) comet.oldRoi.setStrokeColor(Color.gray);
                 if(comet.headRoi != null){
                     comet.headRoi.setStrokeColor(Color.gray);
                 }
                 // Update ID color
-                Overlay overlay = imp.getOverlay();
-                if (overlay != null) {
-                    for (Roi roi : overlay) {
-                        if (roi instanceof TextRoi) {
-                            Rectangle bounds = roi.getBounds();
-                            if (bounds.x == comet.x + comet.width + 5) {
-                                roi.setStrokeColor(Color.gray);
-                                break;
-                            }
-                        }
-                    }
-                }
-            } else if(comet.status == Comet.INVALID_SIZE) {
+                if(comet.labelRoi != null) comet.labelRoi.setStrokeColor(Color.gray);
+            } else if(status == Comet.INVALID_SIZE) {
                 // INVALID_SIZE -> OUTLIER
-                comet.status = Comet.OUTLIER;
-                if(comet.cometRoi != null) comet.cometRoi.setStrokeColor(cometOutlierColor);
-                if(comet.oldRoi != null) comet.oldRoi.setStrokeColor(cometOutlierColor);
+                liveStats.setStatus(row, Comet.OUTLIER);
+                if(comet.cometRoi != null) comet.cometRoi.setStrokeColor(CometOutput.cometOutlierColor);
+                if(comet.oldRoi != null) comet.oldRoi.setStrokeColor(CometOutput.cometOutlierColor);
                 if(comet.headRoi != null){
-                    comet.headRoi.setStrokeColor(cometOutlierColor);
+                    comet.headRoi.setStrokeColor(CometOutput.cometOutlierColor);
                 }
                 // Update ID color
-                Overlay overlay = imp.getOverlay();
-                if (overlay != null) {
-                    for (Roi roi : overlay) {
-                        if (roi instanceof TextRoi) {
-                            Rectangle bounds = roi.getBounds();
-                            if (bounds.x == comet.x + comet.width + 5) {
-                                roi.setStrokeColor(cometOutlierColor);
-                                break;
-                            }
-                        }
-                    }
-                }
-            } else if(comet.status == Comet.OUTLIER) {
+                if(comet.labelRoi != null) comet.labelRoi.setStrokeColor(CometOutput.cometOutlierColor);
+            } else if(status == Comet.OUTLIER) {
                 // OUTLIER -> INVALID_SIZE
-                comet.status = Comet.INVALID_SIZE;
+                liveStats.setStatus(row, Comet.INVALID_SIZE);
                 if(comet.cometRoi != null) comet.cometRoi.setStrokeColor(Color.gray);
                 if(comet.oldRoi != null) comet.oldRoi.setStrokeColor(Color.gray);
                 if(comet.headRoi != null){
                     comet.headRoi.setStrokeColor(Color.gray);
                 }
                 // Update ID color
-                Overlay overlay = imp.getOverlay();
-                if (overlay != null) {
-                    for (Roi roi : overlay) {
-                        if (roi instanceof TextRoi) {
-                            Rectangle bounds = roi.getBounds();
-                            if (bounds.x == comet.x + comet.width + 5) {
-                                roi.setStrokeColor(Color.gray);
-                                break;
-                            }
-                        }
-                    }
-                }
+                if(comet.labelRoi != null) comet.labelRoi.setStrokeColor(Color.gray);
+            }
+            int newStatus = table.getStatus(row);
+            if(newStatus != status){
+                reviewJournal.record(entry.imageKey, table.getId(row), status, newStatus);
             }
             // Update the display
             imp.updateAndDraw();
+            updateReviewSummary();
         }
     }
 
 
-    private Comet findClickedComet(ImagePlus imp, int x,int y){
-        Comet[] comets = (Comet[])Comets.get(imp);
-        if(comets!=null){
-            for(int i=0;i<comets.length;i++){
-                if(comets[i].cometRoi.contains(x, y)){
-                    return comets[i];
-                }
-            }
+    // Index of the clicked comet in the entry, or -1
+    private int findClickedComet(CometResultStore.Entry entry, int x,int y){
+        if(entry!=null && entry.grid!=null){
+            return entry.grid.find(x, y);
         }
-        return null;
+        return -1;
+    }
+
+    public void imageClosed(ImagePlus imp) {
+        if(Comets != null) Comets.release(imp);
+        if(preview != null && preview.getImage() == imp) stopPreview();
     }
 
+    public void imageOpened(ImagePlus imp) {}
+    public void imageUpdated(ImagePlus imp) {}
+
     public void mouseReleased (MouseEvent e) {}
     public void mouseClicked (MouseEvent e) {}
     public void mouseEntered (MouseEvent e) {}
@@ -716,14 +711,5 @@ public class OpenComet_ implements PlugIn, MouseListener {
             }
         return true;
         }
-
-    private void printArray(double[] arr){
-        String s = "";
-        for(int i=0;i<arr.length;i++){
-            s += arr[i];
-            if(i<arr.length-1) s+=",";
-            }
-        IJ.log(s);
-        }
 }
 
@@ -0,0 +1,219 @@
+/**
+* QuantileSketch.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* QuantileSketch.java is a KLL quantile sketch (Karnin, Lang and
+* Liberty, 2016). It keeps a few hundred of the values added to it,
+* each standing for 2^level values, and answers quantile queries with
+* a rank error of about 1% for k=256, however many values were added.
+* Sketches of images, workers or whole runs can be merged, and written
+* as text so that later runs can combine them.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class QuantileSketch {
+    public static final int DEFAULT_K = 256;
+    private static final double CAPACITY_DECAY = 2.0/3.0;
+
+    private final int k;
+    private long n;
+    private double min = Double.NaN, max = Double.NaN;
+    // levels.get(h) holds values of weight 2^h; sizes.get(h) of them are used
+    private final ArrayList<double[]> levels = new ArrayList<double[]>();
+    private final ArrayList<Integer> sizes = new ArrayList<Integer>();
+    // Compactions keep the odd or even items; a fixed seed keeps runs repeatable
+    private final Random random = new Random(0x4b4c4cL);
+
+    public QuantileSketch(){
+        this(DEFAULT_K);
+    }
+
+    public QuantileSketch(int k){
+        if(k < 8) throw new IllegalArgumentException("k must be at least 8");
+        this.k = k;
+        addLevel();
+    }
+
+    public int getK(){
+        return k;
+    }
+
+    // Number of values added, including merged sketches
+    public long getCount(){
+        return n;
+    }
+
+    public double getMin(){
+        return min;
+    }
+
+    public double getMax(){
+        return max;
+    }
+
+    // NaN values are ignored
+    public void add(double value){
+        if(value != value) return;
+        if(n == 0 || value < min) min = value;
+        if(n == 0 || value > max) max = value;
+        n++;
+        append(0, value);
+        compress();
+    }
+
+    public void merge(QuantileSketch other){
+        if(other.n == 0) return;
+        if(n == 0 || other.min < min) min = other.min;
+        if(n == 0 || other.max > max) max = other.max;
+        n += other.n;
+        for(int h=0; h<other.levels.size(); h++){
+            double[] items = other.levels.get(h);
+            for(int i=0; i<other.sizes.get(h); i++){
+                append(h, items[i]);
+            }
+        }
+        compress();
+    }
+
+    // Value at quantile q (0..1), or NaN for an empty sketch
+    public double getQuantile(double q){
+        if(n == 0) return Double.NaN;
+        if(q <= 0) return min;
+        if(q >= 1) return max;
+        int total = 0;
+        for(int size : sizes) total += size;
+        double[] values = new double[total];
+        long[] weights = new long[total];
+        int j = 0;
+        for(int h=0; h<levels.size(); h++){
+            double[] items = levels.get(h);
+            for(int i=0; i<sizes.get(h); i++){
+                values[j] = items[i];
+                weights[j] = 1L << h;
+                j++;
+            }
+        }
+        Integer[] order = new Integer[total];
+        for(int i=0; i<total; i++) order[i] = i;
+        final double[] v = values;
+        Arrays.sort(order, (a, b) -> Double.compare(v[a], v[b]));
+
+        // Smallest retained value whose cumulative weight reaches q*n
+        long weight = 0;
+        for(j=0; j<total; j++){
+            weight += weights[order[j]];
+            if(weight >= q*n) return values[order[j]];
+        }
+        return max;
+    }
+
+    private void addLevel(){
+        levels.add(new double[8]);
+        sizes.add(0);
+    }
+
+    private void append(int h, double value){
+        while(levels.size() <= h) addLevel();
+        double[] items = levels.get(h);
+        int size = sizes.get(h);
+        if(size == items.length){
+            items = Arrays.copyOf(items, 2*items.length);
+            levels.set(h, items);
+        }
+        items[size] = value;
+        sizes.set(h, size + 1);
+    }
+
+    // Capacity of level h; the top level gets k, each lower one 2/3 as much
+    private int capacity(int h){
+        int depth = levels.size() - 1 - h;
+        return Math.max(2, (int)Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void compress(){
+        while(true){
+            int retained = 0, capacity = 0;
+            for(int h=0; h<levels.size(); h++){
+                retained += sizes.get(h);
+                capacity += capacity(h);
+            }
+            if(retained <= capacity) return;
+            for(int h=0; h<levels.size(); h++){
+                if(sizes.get(h) >= capacity(h)){
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Sort level h and promote every other item to level h+1
+    private void compact(int h){
+        if(h + 1 == levels.size()) addLevel();
+        double[] items = levels.get(h);
+        int size = sizes.get(h);
+        Arrays.sort(items, 0, size);
+        // With an odd count the smallest item stays on this level
+        int keep = size % 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        for(int i=keep+offset; i<size; i+=2){
+            append(h + 1, items[i]);
+        }
+        sizes.set(h, keep);
+    }
+
+    // One line of text: "kll k n min max", then the item count and items of each level
+    public String serialize(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("kll ").append(k).append(' ').append(n).append(' ')
+          .append(min).append(' ').append(max);
+        for(int h=0; h<levels.size(); h++){
+            sb.append(' ').append(sizes.get(h));
+            double[] items = levels.get(h);
+            for(int i=0; i<sizes.get(h); i++){
+                sb.append(' ').append(items[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static QuantileSketch deserialize(String s){
+        String[] f = s.trim().split(" ");
+        if(f.length < 5 || !f[0].equals("kll")){
+            throw new IllegalArgumentException("not a KLL sketch: " + s);
+        }
+        QuantileSketch sketch = new QuantileSketch(Integer.parseInt(f[1]));
+        sketch.n = Long.parseLong(f[2]);
+        sketch.min = Double.parseDouble(f[3]);
+        sketch.max = Double.parseDouble(f[4]);
+        int i = 5;
+        for(int h=0; i<f.length; h++){
+            int size = Integer.parseInt(f[i++]);
+            for(int j=0; j<size; j++){
+                sketch.append(h, Double.parseDouble(f[i++]));
+            }
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+* ThresholdKernels.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* ThresholdKernels.java binarizes 8-bit images directly on the
+* byte[] of a ByteProcessor. Pixels at or above the threshold become
+* 255 and all others 0, exactly as CometAnalyzer.setThreshold does
+* through getPixelValue and putPixelValue.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import java.awt.Rectangle;
+
+public final class ThresholdKernels {
+    private ThresholdKernels(){}
+
+    // Binarize the rectangle r of an image of the given width by comparison
+    public static void threshold(byte[] pixels, int width, Rectangle r, int minInt){
+        for(int y=r.y; y<(r.y+r.height); y++){
+            int offset = y*width;
+            for(int i=offset+r.x; i<offset+r.x+r.width; i++){
+                // (v - minInt) is negative exactly when the pixel is below threshold
+                pixels[i] = (byte)~(((pixels[i] & 0xff) - minInt) >> 31);
+                }
+            }
+        }
+
+    // Lookup table mapping each 8-bit value to 0 or 255
+    public static byte[] thresholdLut(int minInt){
+        byte[] lut = new byte[256];
+        for(int v=0; v<256; v++){
+            lut[v] = (v >= minInt) ? (byte)255 : (byte)0;
+            }
+        return lut;
+        }
+
+    // Replace every pixel of the rectangle r by its entry in lut
+    public static void applyLut(byte[] pixels, int width, Rectangle r, byte[] lut){
+        for(int y=r.y; y<(r.y+r.height); y++){
+            int offset = y*width;
+            for(int i=offset+r.x; i<offset+r.x+r.width; i++){
+                pixels[i] = lut[pixels[i] & 0xff];
+                }
+            }
+        }
+}
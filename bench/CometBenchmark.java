@@ -0,0 +1,506 @@
+/**
+* CometBenchmark.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometBenchmark.java times the hot kernels of CometAnalyzer and the
+* CometStatistics summaries on fixed synthetic inputs, so that an
+* optimization can be shown to help before it is merged. Every input
+* is generated from a fixed seed, so two runs see the same pixels.
+* Run it with bench/bench.sh; options use the ImageJ macro format:
+*
+*     bench/bench.sh filter=getColumnAvg warmup=5 iterations=10 time=200
+*
+* filter keeps only benchmarks whose name contains the given text,
+* warmup and iterations are the number of warmup and measured
+* iterations, time is the length of one iteration in milliseconds and
+* out=<file> also writes the results as CSV.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.Macro;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+public class CometBenchmark {
+    // Comet bounding boxes (width x height) and square image sizes
+    private static final int[][] COMET_SIZES = {{48, 32}, {120, 64}, {320, 160}};
+    // 192x192 is below the lookup table limit of setThreshold, the others above
+    private static final int[] IMAGE_SIZES = {192, 1024, 4096};
+    private static final int[] STATISTICS_SIZES = {1000, 10000, 100000};
+    private static final long SEED = 20240601L;
+
+    private static volatile long sink;
+
+    private final ArrayList<Bench> benches = new ArrayList<Bench>();
+    private final CometAnalyzer cometAnalyzer = new CometAnalyzer();
+    private int warmup = 5;
+    private int iterations = 10;
+    private long iterationNanos = 200000000L;
+
+    public static void main(String[] args){
+        StringBuilder options = new StringBuilder();
+        for(String arg : args){
+            options.append(arg).append(' ');
+        }
+        new CometBenchmark().run(options.toString());
+    }
+
+    private void run(String options){
+        String filter = Macro.getValue(options, "filter", "");
+        String outPath = Macro.getValue(options, "out", null);
+        warmup = Integer.parseInt(Macro.getValue(options, "warmup", "" + warmup));
+        iterations = Integer.parseInt(Macro.getValue(options, "iterations", "" + iterations));
+        iterationNanos = Long.parseLong(Macro.getValue(options, "time", "200")) * 1000000L;
+
+        // The kernels log through IJ.log, which prints to stdout without a
+        // window; the messages are still built, only their output is dropped
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream(){
+            public void write(int b){}
+            public void write(byte[] b, int off, int len){}
+        }));
+        addCometBenches();
+        addImageBenches();
+        addStatisticsBenches();
+
+        ArrayList<String> rows = new ArrayList<String>();
+        console.println(String.format(Locale.ROOT, "%-36s %-14s %5s %14s %12s  %s",
+                        "Benchmark", "Params", "Cnt", "Score", "Error", "Units"));
+        try {
+            for(Bench bench : benches){
+                if(!bench.name.contains(filter)) continue;
+                double[] scores = measure(bench);
+                double mean = mean(scores);
+                // Two standard errors, roughly a 95% confidence interval
+                double error = 2.0 * stddev(scores, mean) / Math.sqrt(scores.length);
+                console.println(String.format(Locale.ROOT, "%-36s %-14s %5d %14.3f %12.3f  us/op",
+                                bench.name, bench.params, scores.length, mean, error));
+                rows.add(bench.name + "," + bench.params + "," + scores.length + "," +
+                         mean + "," + error);
+            }
+        }
+        finally {
+            System.setOut(console);
+        }
+
+        if(outPath != null){
+            try {
+                PrintWriter out = new PrintWriter(outPath);
+                out.println("benchmark,params,iterations,us_per_op,error_us");
+                for(String row : rows) out.println(row);
+                out.close();
+            }
+            catch(IOException ex){
+                System.err.println(ex.toString());
+            }
+        }
+    }
+
+    // Microseconds per operation of each measured iteration
+    private double[] measure(Bench bench){
+        bench.setupTrial();
+        for(int i=0; i<warmup; i++){
+            iteration(bench);
+        }
+        double[] scores = new double[iterations];
+        for(int i=0; i<iterations; i++){
+            scores[i] = iteration(bench);
+        }
+        bench.tearDownTrial();
+        return scores;
+    }
+
+    private double iteration(Bench bench){
+        long ops = 0;
+        long measured = 0;
+        long end = System.nanoTime() + iterationNanos;
+        if(bench.perInvocation){
+            // Inputs that the kernel modifies are restored outside the timed region
+            do {
+                bench.setup();
+                long t0 = System.nanoTime();
+                Object r = bench.run();
+                measured += System.nanoTime() - t0;
+                consume(r);
+                ops++;
+            } while(System.nanoTime() < end);
+        }
+        else {
+            long t0 = System.nanoTime();
+            do {
+                for(int i=0; i<16; i++){
+                    consume(bench.run());
+                }
+                ops += 16;
+            } while(System.nanoTime() < end);
+            measured = System.nanoTime() - t0;
+        }
+        return measured / 1000.0 / ops;
+    }
+
+    private static void consume(Object o){
+        sink += (o == null) ? 0 : o.hashCode();
+    }
+
+    private static double mean(double[] x){
+        double sum = 0;
+        for(double v : x) sum += v;
+        return sum / x.length;
+    }
+
+    private static double stddev(double[] x, double mean){
+        if(x.length < 2) return 0;
+        double sum = 0;
+        for(double v : x) sum += (v - mean)*(v - mean);
+        return Math.sqrt(sum / (x.length - 1));
+    }
+
+    // Kernels that work on one comet, at each comet size
+    private void addCometBenches(){
+        for(int[] size : COMET_SIZES){
+            final SyntheticComet sc = new SyntheticComet(size[0], size[1]);
+            String params = size[0] + "x" + size[1];
+
+            benches.add(new Bench("getColumnAvg", params){
+                Object run(){
+                    return cometAnalyzer.getColumnAvg(sc.ip, sc.comet.cometRoi, sc.bounds);
+                }
+            });
+            benches.add(new Bench("subtractBackground", params, true){
+                void setup(){
+                    sc.reset();
+                }
+                Object run(){
+                    cometAnalyzer.subtractBackground(sc.ip, sc.comet.cometRoi, sc.bgAvg);
+                    return sc.ip;
+                }
+            });
+            benches.add(new Bench("getXIntensityCentroid", params){
+                void setupTrial(){
+                    sc.ip.setRoi(sc.comet.cometRoi);
+                }
+                Object run(){
+                    return cometAnalyzer.getXIntensityCentroid(sc.ip);
+                }
+            });
+            benches.add(new Bench("ySymmetry", params){
+                void setupTrial(){
+                    sc.ip.setRoi(sc.comet.cometRoi);
+                }
+                Object run(){
+                    return cometAnalyzer.ySymmetry(sc.ip);
+                }
+            });
+            benches.add(new Bench("getFrontCentroid", params){
+                void setupTrial(){
+                    sc.ip.setRoi(sc.comet.cometRoi);
+                }
+                Object run(){
+                    return cometAnalyzer.getFrontCentroid(sc.ip);
+                }
+            });
+            benches.add(new Bench("convFilter", params){
+                final double[] profile = cometAnalyzer.getColumnAvg(sc.ip, sc.comet.cometRoi, sc.bounds);
+                final double[] kernel = smoothKernel(sc.bounds.width);
+                Object run(){
+                    return cometAnalyzer.convFilter(profile, kernel, true);
+                }
+            });
+            benches.add(new Bench("getHeadEdge", params){
+                Object run(){
+                    return cometAnalyzer.getHeadEdge(sc.ip, sc.comet);
+                }
+            });
+        }
+    }
+
+    // Kernels that work on a whole image, at each image size
+    private void addImageBenches(){
+        for(final int size : IMAGE_SIZES){
+            String params = size + "x" + size;
+
+            benches.add(new Bench("getCometChannel", params){
+                ColorProcessor cp;
+                void setupTrial(){
+                    cp = syntheticRgb(size, size);
+                }
+                void tearDownTrial(){
+                    cp = null;
+                }
+                Object run(){
+                    return cometAnalyzer.getCometChannel(cp);
+                }
+            });
+            benches.add(new Bench("setThreshold", params, true){
+                ByteProcessor source, ip;
+                void setupTrial(){
+                    source = syntheticPlate(size, size);
+                    ip = (ByteProcessor)source.duplicate();
+                }
+                void tearDownTrial(){
+                    source = ip = null;
+                }
+                void setup(){
+                    restore(source, ip);
+                }
+                Object run(){
+                    cometAnalyzer.setThreshold(ip, 40);
+                    return ip;
+                }
+            });
+            benches.add(new Bench("open_ntimes", params, true){
+                ByteProcessor source, ip;
+                void setupTrial(){
+                    source = syntheticPlate(size, size);
+                    source.threshold(40);
+                    ip = (ByteProcessor)source.duplicate();
+                }
+                void tearDownTrial(){
+                    source = ip = null;
+                }
+                void setup(){
+                    restore(source, ip);
+                }
+                Object run(){
+                    cometAnalyzer.open_ntimes(ip, 3, 0);
+                    return ip;
+                }
+            });
+            benches.add(new Bench("medianHistogram", params){
+                ByteProcessor source;
+                byte[] dst;
+                int[] lineRadii;
+                void setupTrial(){
+                    source = syntheticPlate(size, size);
+                    dst = new byte[size*size];
+                    lineRadii = MedianKernels.lineRadii(10.0);
+                }
+                void tearDownTrial(){
+                    source = null;
+                    dst = null;
+                }
+                Object run(){
+                    MedianKernels.median((byte[])source.getPixels(), dst, size, size,
+                                         lineRadii, 0, size);
+                    return dst;
+                }
+            });
+            benches.add(new Bench("medianRankFilters", params, true){
+                ByteProcessor source, ip;
+                void setupTrial(){
+                    source = syntheticPlate(size, size);
+                    ip = (ByteProcessor)source.duplicate();
+                }
+                void tearDownTrial(){
+                    source = ip = null;
+                }
+                void setup(){
+                    restore(source, ip);
+                }
+                Object run(){
+                    new RankFilters().rank(ip, 10.0, RankFilters.MEDIAN);
+                    return ip;
+                }
+            });
+        }
+    }
+
+    private void addStatisticsBenches(){
+        for(int n : STATISTICS_SIZES){
+            final CometTable table = syntheticResults(n);
+            String params = n + " comets";
+
+            benches.add(new Bench("CometStatistics.new", params){
+                Object run(){
+                    return new CometStatistics(table);
+                }
+            });
+            benches.add(new Bench("getStatisticsString", params){
+                final CometStatistics stats = new CometStatistics(table);
+                Object run(){
+                    return stats.getStatisticsString(",");
+                }
+            });
+        }
+    }
+
+    private static double[] smoothKernel(int cometWidth){
+        double[] kernel = new double[Math.max(1, cometWidth/10)];
+        Arrays.fill(kernel, 1.0/kernel.length);
+        return kernel;
+    }
+
+    private static void restore(ByteProcessor source, ByteProcessor ip){
+        System.arraycopy((byte[])source.getPixels(), 0, (byte[])ip.getPixels(), 0,
+                         source.getWidth()*source.getHeight());
+        ip.resetRoi();
+    }
+
+    // Intensity of a comet with its head at the left end of a w x h box
+    private static double cometIntensity(double x, double y, int w, int h){
+        double r = h/2.0;
+        double dy = (y - r) / r;
+        double dxHead = (x - r) / r;
+        double head = 200.0 * Math.exp(-2.0*(dxHead*dxHead + dy*dy));
+        double tail = (x < r) ? 0 : 90.0 * Math.exp(-3.0*(x - r)/(w - r)) * Math.exp(-3.0*dy*dy);
+        return head + tail;
+    }
+
+    // Gray plate with comets scattered on a 128 pixel grid
+    private static ByteProcessor syntheticPlate(int width, int height){
+        Random random = new Random(SEED);
+        ByteProcessor bp = new ByteProcessor(width, height);
+        byte[] pixels = (byte[])bp.getPixels();
+        for(int i=0; i<pixels.length; i++){
+            pixels[i] = (byte)(12 + random.nextInt(8));
+        }
+        for(int cy=8; cy+64<height; cy+=128){
+            for(int cx=8; cx+120<width; cx+=128){
+                int w = 60 + random.nextInt(60);
+                int h = 24 + random.nextInt(40);
+                for(int y=0; y<h; y++){
+                    for(int x=0; x<w; x++){
+                        int i = (cy+y)*width + cx + x;
+                        int v = (pixels[i] & 0xff) + (int)cometIntensity(x, y, w, h);
+                        pixels[i] = (byte)Math.min(255, v);
+                    }
+                }
+            }
+        }
+        return bp;
+    }
+
+    // RGB plate with the comets in the green channel, as for SYBR stains
+    private static ColorProcessor syntheticRgb(int width, int height){
+        byte[] g = (byte[])syntheticPlate(width, height).getPixels();
+        Random random = new Random(SEED + 1);
+        int[] pixels = new int[width*height];
+        for(int i=0; i<pixels.length; i++){
+            int r = 4 + random.nextInt(8);
+            int b = 4 + random.nextInt(8);
+            pixels[i] = (r << 16) | ((g[i] & 0xff) << 8) | b;
+        }
+        return new ColorProcessor(width, height, pixels);
+    }
+
+    // Results of n comets in images of 100 comets, with a few outliers and invalid sizes
+    private static CometTable syntheticResults(int n){
+        Random random = new Random(SEED);
+        CometTable table = new CometTable();
+        Roi roi = new Roi(0, 0, 10, 10);
+        int index = 0;
+        for(int start=0; start<n; start+=100, index++){
+            Comet[] comets = new Comet[Math.min(100, n - start)];
+            for(int i=0; i<comets.length; i++){
+                Comet c = new Comet(roi);
+                c.id = start + i + 1;
+                int r = random.nextInt(20);
+                c.status = (r == 0) ? Comet.OUTLIER : (r == 1) ? Comet.INVALID_SIZE : Comet.VALID;
+                c.cometArea = 2000 + 1000*random.nextDouble();
+                c.cometIntensity = c.cometArea * (60 + 40*random.nextDouble());
+                c.cometLength = 80 + 60*random.nextDouble();
+                c.cometDNA = c.cometIntensity;
+                c.headArea = c.cometArea * (0.3 + 0.4*random.nextDouble());
+                c.headIntensity = c.headArea * (100 + 50*random.nextDouble());
+                c.headLength = 30 + 20*random.nextDouble();
+                c.headDNA = c.headIntensity;
+                c.headDNAPercent = 100.0 * Math.min(1.0, c.headDNA / c.cometDNA);
+                c.tailArea = c.cometArea - c.headArea;
+                c.tailIntensity = c.cometIntensity - c.headIntensity;
+                c.tailLength = c.cometLength - c.headLength;
+                c.tailDNA = c.tailIntensity;
+                c.tailDNApercent = 100.0 - c.headDNAPercent;
+                c.tailMoment = c.tailLength * c.tailDNApercent / 100.0;
+                c.tailOliveMoment = 0.5 * c.tailMoment * (1 + random.nextDouble());
+                comets[i] = c;
+            }
+            table.addImage("image" + index, comets);
+        }
+        return table;
+    }
+
+    // One comet on a dark margin, with the column averages of a background strip
+    private static class SyntheticComet {
+        final ByteProcessor source;
+        final ByteProcessor ip;
+        final Comet comet;
+        final Rectangle bounds;
+        final double[] bgAvg;
+
+        SyntheticComet(int w, int h){
+            int margin = 20;
+            Random random = new Random(SEED + w);
+            source = new ByteProcessor(w + 2*margin, h + 2*margin);
+            for(int y=0; y<source.getHeight(); y++){
+                for(int x=0; x<source.getWidth(); x++){
+                    double v = 12 + random.nextInt(8) + cometIntensity(x - margin, y - margin, w, h);
+                    source.set(x, y, (int)Math.min(255, v));
+                }
+            }
+            ip = (ByteProcessor)source.duplicate();
+            Roi oval = new OvalRoi(margin, margin, w, h);
+            comet = new Comet(new PolygonRoi(oval.getPolygon(), Roi.POLYGON));
+            comet.circularity = 4.0*Math.PI*(Math.PI*w*h/4.0) / Math.pow(oval.getLength(), 2);
+            bounds = comet.cometRoi.getBounds();
+            bgAvg = new double[bounds.width];
+            Arrays.fill(bgAvg, 15.5);
+        }
+
+        void reset(){
+            restore(source, ip);
+        }
+    }
+
+    private static abstract class Bench {
+        final String name;
+        final String params;
+        // Run setup() before every call, outside the timed region
+        final boolean perInvocation;
+
+        Bench(String name, String params){
+            this(name, params, false);
+        }
+
+        Bench(String name, String params, boolean perInvocation){
+            this.name = name;
+            this.params = params;
+            this.perInvocation = perInvocation;
+        }
+
+        void setupTrial(){}
+        void tearDownTrial(){}
+        void setup(){}
+        abstract Object run();
+    }
+}
@@ -0,0 +1,468 @@
+/**
+* CometPlateGenerator.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometPlateGenerator.java writes synthetic comet plates with known
+* comets for load and accuracy tests, together with a ground truth
+* CSV file. The same seed always gives the same plate. The plate is
+* written band by band as an uncompressed strip TIFF, so plates of a
+* gigapixel and more never have to fit in memory:
+*
+*     bench/bench.sh CometPlateGenerator output=/data/plate1.tif
+*         width=4096 height=4096 density=40 bits=8 seed=1
+*
+* Options, with their defaults:
+*   width=4096 height=4096  plate size in pixels
+*   bits=8                  8, 16 or rgb (comets in the green channel)
+*   density=40              comets per megapixel, at most one per cell
+*   headradius=6-14         head radius range in pixels
+*   taillength=20-120       tail length range in pixels
+*   taildna=5-60            tail DNA range in percent
+*   background=20           background level
+*   uneven=0.5              background slope and bow, relative to the level
+*   noise=4                 standard deviation of the pixel noise
+*   seed=1
+*
+* Each comet is a Gaussian head with a tail to its right that fades
+* linearly over the tail length. The tail is scaled to give the chosen
+* tail DNA, and the whole comet so that its peak is 120 to 200 above
+* the background, which keeps 8-bit plates from saturating.
+* The ground truth (output name with _truth.csv) is computed on the
+* comet before background, noise and rounding are added, with the same
+* definitions as CometAnalyzer: tail moment is tail length times tail
+* DNA fraction and the Olive moment is the tail DNA fraction times the
+* distance between the columns where head and tail reach half of their
+* intensity.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.Macro;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Random;
+
+public class CometPlateGenerator {
+    // Brightest pixel of a comet above the background, on the 8-bit scale
+    private static final double MAX_PEAK = 200.0;
+    // 16-bit plates use the 8-bit model scaled by this factor
+    private static final double SCALE_16 = 200.0;
+    private static final int MARGIN = 8;
+
+    private String outPath;
+    private int width, height;
+    private String bits;
+    private double density;
+    private double[] headRadius, tailLength, tailDNA;
+    private double background, uneven, noise;
+    private long seed;
+
+    public static void main(String[] args){
+        StringBuilder options = new StringBuilder();
+        for(String arg : args){
+            options.append(arg).append(' ');
+        }
+        CometPlateGenerator generator = new CometPlateGenerator();
+        String error = generator.parseOptions(options.toString());
+        if(error != null){
+            System.err.println("CometPlateGenerator: " + error);
+            System.exit(2);
+        }
+        try {
+            int n = generator.generate();
+            System.out.println("Wrote " + n + " comets to " + generator.outPath);
+        }
+        catch(IOException ex){
+            System.err.println(ex.toString());
+            System.exit(1);
+        }
+    }
+
+    private String parseOptions(String options){
+        outPath = Macro.getValue(options, "output", null);
+        if(outPath == null) return "no output file given";
+        try {
+            width = Integer.parseInt(Macro.getValue(options, "width", "4096"));
+            height = Integer.parseInt(Macro.getValue(options, "height", "4096"));
+            density = Double.parseDouble(Macro.getValue(options, "density", "40"));
+            headRadius = parseRange(Macro.getValue(options, "headradius", "6-14"));
+            tailLength = parseRange(Macro.getValue(options, "taillength", "20-120"));
+            tailDNA = parseRange(Macro.getValue(options, "taildna", "5-60"));
+            background = Double.parseDouble(Macro.getValue(options, "background", "20"));
+            uneven = Double.parseDouble(Macro.getValue(options, "uneven", "0.5"));
+            noise = Double.parseDouble(Macro.getValue(options, "noise", "4"));
+            seed = Long.parseLong(Macro.getValue(options, "seed", "1"));
+        }
+        catch(NumberFormatException ex){
+            return "bad number: " + ex.getMessage();
+        }
+        bits = Macro.getValue(options, "bits", "8");
+        if(!bits.equals("8") && !bits.equals("16") && !bits.equals("rgb"))
+            return "bits must be 8, 16 or rgb";
+        if(width < 1 || height < 1) return "bad plate size";
+        if(tailDNA[0] < 0 || tailDNA[1] >= 100) return "taildna must be within 0-100";
+        if((long)width*height*bytesPerPixel() > 0xffffffffL - 65536)
+            return "plate too large for a TIFF file";
+        return null;
+    }
+
+    private static double[] parseRange(String s){
+        int dash = s.indexOf('-', 1);
+        if(dash < 0){
+            double v = Double.parseDouble(s);
+            return new double[]{v, v};
+        }
+        return new double[]{Double.parseDouble(s.substring(0, dash)),
+                            Double.parseDouble(s.substring(dash + 1))};
+    }
+
+    private int bytesPerPixel(){
+        return bits.equals("8") ? 1 : bits.equals("16") ? 2 : 3;
+    }
+
+    // Write the plate and its ground truth; returns the number of comets
+    public int generate() throws IOException {
+        // Every comet fits in its own cell with a margin, so cells are independent
+        int cellW = (int)Math.ceil(2*headRadius[1] + tailLength[1]) + 2*MARGIN;
+        int cellH = (int)Math.ceil(4*headRadius[1]) + 2*MARGIN;
+        int cellsX = width / cellW;
+        int cellsY = height / cellH;
+        double pCell = Math.min(1.0, density * cellW * cellH / 1e6);
+
+        Random random = new Random(seed);
+        TiffStripWriter tiff = new TiffStripWriter(outPath, width, height, bytesPerPixel(), cellH);
+        PrintWriter truth = new PrintWriter(truthPath(outPath));
+        truth.println(GroundTruth.HEADER);
+        float[] band = new float[width*cellH];
+        int n = 0;
+        try {
+            for(int by=0; by*cellH<height; by++){
+                int y0 = by*cellH;
+                int rows = Math.min(cellH, height - y0);
+                fillBackground(band, y0, rows, by);
+                if(by < cellsY){
+                    for(int bx=0; bx<cellsX; bx++){
+                        if(random.nextDouble() >= pCell) continue;
+                        GroundTruth c = renderComet(band, random, bx*cellW, y0, cellW, cellH, ++n);
+                        truth.println(c.toCsv());
+                    }
+                }
+                tiff.writeRows(band, rows, bits.equals("16") ? SCALE_16 : 1.0);
+            }
+        }
+        finally {
+            tiff.close();
+            truth.close();
+        }
+        return n;
+    }
+
+    public static String truthPath(String platePath){
+        int dot = platePath.lastIndexOf('.');
+        String base = (dot > platePath.lastIndexOf('/')) ? platePath.substring(0, dot) : platePath;
+        return base + "_truth.csv";
+    }
+
+    // Uneven background plus noise; each band has its own random stream
+    private void fillBackground(float[] band, int y0, int rows, int bandIndex){
+        Random random = new Random(seed*1000003L + bandIndex);
+        for(int y=0; y<rows; y++){
+            double bow = Math.sin(Math.PI*(y0 + y)/height);
+            int offset = y*width;
+            for(int x=0; x<width; x++){
+                double level = background*(1 + uneven*(0.6*x/width + 0.4*bow - 0.5));
+                band[offset + x] = (float)(level + noise*random.nextGaussian());
+            }
+        }
+    }
+
+    private static double pick(Random random, double[] range){
+        return range[0] + (range[1] - range[0])*random.nextDouble();
+    }
+
+    // Draw one comet inside its cell of the band and return its ground truth
+    private GroundTruth renderComet(float[] band, Random random, int cellX, int y0,
+                                    int cellW, int cellH, int id){
+        GroundTruth c = new GroundTruth();
+        c.id = id;
+        c.headRadius = pick(random, headRadius);
+        c.tailLength = pick(random, tailLength);
+        double targetTail = pick(random, tailDNA) / 100.0;
+        double sigma = c.headRadius / 2.0;
+        int reach = (int)Math.ceil(2*c.headRadius);
+
+        // Jitter the head inside the room the cell leaves around the comet
+        int spareX = cellW - 2*MARGIN - reach - (int)Math.ceil(c.tailLength) - 1;
+        int spareY = cellH - 2*MARGIN - 2*reach - 1;
+        int cx = cellX + MARGIN + reach + random.nextInt(Math.max(1, spareX));
+        int cy = MARGIN + reach + random.nextInt(Math.max(1, spareY));
+        c.x = cx;
+        c.y = y0 + cy;
+
+        int pw = reach + (int)Math.ceil(c.tailLength) + 1;
+        int ph = 2*reach + 1;
+        c.boundX = cx - reach;
+        c.boundY = c.y - reach;
+        c.boundW = pw;
+        c.boundH = ph;
+
+        // Unit head and tail on a patch whose column 0 is at cx - reach
+        double[] head = new double[pw*ph];
+        double[] tail = new double[pw*ph];
+        double headSum = 0, tailSum = 0;
+        for(int py=0; py<ph; py++){
+            double dy = py - reach;
+            for(int px=0; px<pw; px++){
+                double dx = px - reach;
+                double h = Math.exp(-(dx*dx + dy*dy)/(2*sigma*sigma));
+                double t = 0;
+                if(dx > 0 && dx < c.tailLength){
+                    double st = sigma*(1 - 0.4*dx/c.tailLength);
+                    t = (1 - dx/c.tailLength) * Math.exp(-dy*dy/(2*st*st));
+                }
+                head[py*pw + px] = h;
+                tail[py*pw + px] = t;
+                headSum += h;
+                tailSum += t;
+            }
+        }
+        double tailAmp = (tailSum > 0) ? targetTail/(1 - targetTail) * headSum/tailSum : 0;
+        double peak = 0;
+        for(int i=0; i<head.length; i++){
+            peak = Math.max(peak, head[i] + tailAmp*tail[i]);
+        }
+        double amp = MAX_PEAK*(0.6 + 0.4*random.nextDouble()) / peak;
+
+        double[] headCols = new double[pw];
+        double[] tailCols = new double[pw];
+        for(int py=0; py<ph; py++){
+            int row = (cy - reach + py)*width + cx - reach;
+            for(int px=0; px<pw; px++){
+                double h = amp*head[py*pw + px];
+                double t = amp*tailAmp*tail[py*pw + px];
+                band[row + px] += (float)(h + t);
+                headCols[px] += h;
+                tailCols[px] += t;
+            }
+        }
+
+        c.headDNA = amp*headSum;
+        c.tailDNA = amp*tailAmp*tailSum;
+        double tailFraction = c.tailDNA / (c.headDNA + c.tailDNA);
+        c.tailDNApercent = 100*tailFraction;
+        c.tailMoment = c.tailLength * tailFraction;
+        int headCentroid = halfIntensityColumn(headCols);
+        int tailCentroid = (c.tailDNA > 0) ? halfIntensityColumn(tailCols) : headCentroid;
+        c.tailOliveMoment = tailFraction * Math.abs(tailCentroid - headCentroid);
+        return c;
+    }
+
+    // First column at which the running sum exceeds half of the total
+    private static int halfIntensityColumn(double[] cols){
+        double total = 0;
+        for(double v : cols) total += v;
+        double sum = 0;
+        int x;
+        for(x=0; x<cols.length; x++){
+            sum += cols[x];
+            if(sum > total/2.0) break;
+        }
+        return x;
+    }
+
+    // Ground truth of one comet; coordinates are image pixels
+    public static class GroundTruth {
+        public static final String HEADER = "id,x,y,boundX,boundY,boundWidth,boundHeight," +
+            "headRadius,tailLength,headDNA,tailDNA,tailDNApercent,tailMoment,tailOliveMoment";
+
+        public int id;
+        public int x, y;
+        public int boundX, boundY, boundW, boundH;
+        public double headRadius, tailLength;
+        public double headDNA, tailDNA, tailDNApercent;
+        public double tailMoment, tailOliveMoment;
+
+        String toCsv(){
+            return id + "," + x + "," + y + "," + boundX + "," + boundY + "," +
+                   boundW + "," + boundH + "," + headRadius + "," + tailLength + "," +
+                   headDNA + "," + tailDNA + "," + tailDNApercent + "," +
+                   tailMoment + "," + tailOliveMoment;
+        }
+
+        public static GroundTruth fromCsv(String line){
+            String[] f = line.split(",");
+            GroundTruth c = new GroundTruth();
+            c.id = Integer.parseInt(f[0]);
+            c.x = Integer.parseInt(f[1]);
+            c.y = Integer.parseInt(f[2]);
+            c.boundX = Integer.parseInt(f[3]);
+            c.boundY = Integer.parseInt(f[4]);
+            c.boundW = Integer.parseInt(f[5]);
+            c.boundH = Integer.parseInt(f[6]);
+            c.headRadius = Double.parseDouble(f[7]);
+            c.tailLength = Double.parseDouble(f[8]);
+            c.headDNA = Double.parseDouble(f[9]);
+            c.tailDNA = Double.parseDouble(f[10]);
+            c.tailDNApercent = Double.parseDouble(f[11]);
+            c.tailMoment = Double.parseDouble(f[12]);
+            c.tailOliveMoment = Double.parseDouble(f[13]);
+            return c;
+        }
+    }
+
+    // Uncompressed little-endian TIFF written strip by strip. All offsets
+    // are known up front, so the header and directory come first.
+    private static class TiffStripWriter {
+        private final OutputStream out;
+        private final int width, height, bytesPerPixel, rowsPerStrip;
+        private final byte[] row;
+        private int rowsWritten;
+
+        TiffStripWriter(String path, int width, int height, int bytesPerPixel,
+                        int rowsPerStrip) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.bytesPerPixel = bytesPerPixel;
+            this.rowsPerStrip = rowsPerStrip;
+            this.row = new byte[width*bytesPerPixel];
+            out = new BufferedOutputStream(new FileOutputStream(path), 1 << 20);
+            writeHeader();
+        }
+
+        private void writeHeader() throws IOException {
+            boolean rgb = (bytesPerPixel == 3);
+            int nStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+            long stripBytes = (long)width*rowsPerStrip*bytesPerPixel;
+            int nEntries = rgb ? 11 : 10;
+            long ifdSize = 2 + 12L*nEntries + 4;
+            long extraOffset = 8 + ifdSize;
+            long bitsOffset = extraOffset;
+            long offsetsOffset = bitsOffset + (rgb ? 6 : 0);
+            long countsOffset = offsetsOffset + 4L*nStrips;
+            long dataOffset = countsOffset + 4L*nStrips;
+
+            ByteBuf b = new ByteBuf();
+            b.bytes('I', 'I').short16(42).int32(8);
+            b.short16(nEntries);
+            b.entry(254, 4, 1, 0);
+            b.entry(256, 4, 1, width);
+            b.entry(257, 4, 1, height);
+            b.entry(258, 3, rgb ? 3 : 1, rgb ? bitsOffset : (bytesPerPixel == 2 ? 16 : 8));
+            b.entry(259, 3, 1, 1);
+            b.entry(262, 3, 1, rgb ? 2 : 1);
+            b.entry(273, 4, nStrips, (nStrips == 1) ? dataOffset : offsetsOffset);
+            b.entry(277, 3, 1, rgb ? 3 : 1);
+            b.entry(278, 4, 1, rowsPerStrip);
+            b.entry(279, 4, nStrips, (nStrips == 1) ? (long)width*height*bytesPerPixel : countsOffset);
+            if(rgb) b.entry(284, 3, 1, 1);
+            b.int32(0);
+            if(rgb) b.short16(8).short16(8).short16(8);
+            out.write(b.toArray());
+
+            // Strip tables are only written when they don't fit in the entries
+            if(nStrips > 1){
+                ByteBuf tables = new ByteBuf();
+                for(int i=0; i<nStrips; i++){
+                    tables.int32(dataOffset + i*stripBytes);
+                }
+                for(int i=0; i<nStrips; i++){
+                    long rows = Math.min(rowsPerStrip, height - (long)i*rowsPerStrip);
+                    tables.int32(rows*width*bytesPerPixel);
+                }
+                out.write(tables.toArray());
+            }
+        }
+
+        // Write rows of model values; 16-bit values are multiplied by scale
+        void writeRows(float[] band, int rows, double scale) throws IOException {
+            for(int y=0; y<rows; y++){
+                int offset = y*width;
+                for(int x=0; x<width; x++){
+                    double v = band[offset + x]*scale;
+                    if(bytesPerPixel == 1){
+                        row[x] = (byte)clamp(v, 255);
+                    }
+                    else if(bytesPerPixel == 2){
+                        int s = clamp(v, 65535);
+                        row[2*x] = (byte)s;
+                        row[2*x + 1] = (byte)(s >> 8);
+                    }
+                    else {
+                        // Green stain with a dim, scaled copy in red and blue
+                        int g = clamp(v, 255);
+                        row[3*x] = (byte)(g/4);
+                        row[3*x + 1] = (byte)g;
+                        row[3*x + 2] = (byte)(g/5);
+                    }
+                }
+                out.write(row);
+            }
+            rowsWritten += rows;
+        }
+
+        private static int clamp(double v, int max){
+            long r = Math.round(v);
+            return (int)Math.max(0, Math.min(max, r));
+        }
+
+        void close() throws IOException {
+            out.close();
+            if(rowsWritten != height){
+                throw new IOException("wrote " + rowsWritten + " of " + height + " rows");
+            }
+        }
+    }
+
+    private static class ByteBuf {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ByteBuf bytes(int a, int b){
+            bytes.write(a);
+            bytes.write(b);
+            return this;
+        }
+
+        ByteBuf short16(int v){
+            return bytes(v & 0xff, (v >> 8) & 0xff);
+        }
+
+        ByteBuf int32(long v){
+            short16((int)(v & 0xffff));
+            return short16((int)((v >> 16) & 0xffff));
+        }
+
+        // One directory entry; short values are left-justified in the value field
+        ByteBuf entry(int tag, int type, long count, long value){
+            short16(tag).short16(type).int32(count);
+            if(type == 3 && count == 1){
+                return short16((int)value).short16(0);
+            }
+            return int32(value);
+        }
+
+        byte[] toArray(){
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/**
+* CometPlateHarness.java
+* Part of OpenComet v2.0
+* National University of Singapore & Medical College of Wisconsin
+*
+* CometPlateHarness.java analyzes plates written by CometPlateGenerator
+* with the batch engine and compares the comets found against the
+* ground truth. It reports throughput, how many comets were found, and
+* the error of each measurement:
+*
+*     bench/bench.sh CometPlateHarness input=/data/plates threads=8
+*         threshold=Triangle head=auto out=/data/matches.csv
+*
+* input is a list of plates or directories separated by the path
+* separator; only images with a _truth.csv file next to them are used.
+* A comet matches the ground truth comet whose head center lies inside
+* it; comets covering several heads are counted as merged. out=<file>
+* writes every matched pair, report=<file> the JSON run report. The
+* share of buffers the workers reused is reported too; none reused over
+* many comets means the per-comet work ran on short-lived threads, which
+* shows first with threads=1.
+*
+* This plugin is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License version 3
+* as published by the Free Software Foundation.
+*
+* This work is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* When you use this plugin for your work, please cite
+* Gyori BM, Venkatachalam G, et al. OpenComet: An automated tool for
+* comet assay image analysis
+*
+* You should have received a copy of the GNU General Public License
+* along with this plugin; if not, write to the Free Software
+* Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+*/
+
+import ij.IJ;
+import ij.Macro;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+public class CometPlateHarness {
+    // Measurements compared with the ground truth
+    private static final String[] METRICS = {"tailDNApercent", "tailMoment", "tailOliveMoment",
+                                             "tailLength", "headRadius"};
+    private static final int GRID = 64;
+
+    private final ErrorStats[] errors = new ErrorStats[METRICS.length];
+    private int truthCount, detected, matched, merged, unmatched, truthFound;
+    private final int[] statusCounts = new int[5];
+    private long pixels;
+    private PrintWriter matchOut;
+
+    public static void main(String[] args){
+        StringBuilder options = new StringBuilder();
+        for(String arg : args){
+            options.append(arg).append(' ');
+        }
+        String error = new CometPlateHarness().run(options.toString());
+        if(error != null){
+            System.err.println("CometPlateHarness: " + error);
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    private String run(String options){
+        String input = Macro.getValue(options, "input", null);
+        if(input == null) return "no input given";
+        File[] plates = listPlates(input);
+        if(plates.length == 0) return "no plates with ground truth found in " + input;
+
+        String thresholdMethod = Macro.getValue(options, "threshold", "Triangle");
+        int cometOptions = 0;
+        if(Boolean.parseBoolean(Macro.getValue(options, "background", "true")))
+            cometOptions |= CometAnalyzer.COMETFIND_BGCORRECT;
+        String head = Macro.getValue(options, "head", "auto");
+        if(head.equalsIgnoreCase("auto"))
+            cometOptions |= CometAnalyzer.HEADFIND_AUTO;
+        else if(head.equalsIgnoreCase("profile"))
+            cometOptions |= CometAnalyzer.HEADFIND_PROFILE;
+        else if(head.equalsIgnoreCase("brightest"))
+            cometOptions |= CometAnalyzer.HEADFIND_BRIGHTEST;
+        else
+            return "unknown head finding method " + head;
+        int nThreads = Integer.parseInt(Macro.getValue(options, "threads",
+                                        "" + CometBatch.defaultThreads()));
+        String outPath = Macro.getValue(options, "out", null);
+        String reportPath = Macro.getValue(options, "report", null);
+
+        for(int i=0; i<METRICS.length; i++){
+            errors[i] = new ErrorStats();
+        }
+        try {
+            if(outPath != null){
+                matchOut = new PrintWriter(outPath);
+                matchOut.println("image,truthId,cometId,status," + joinMetrics("truth_") + "," +
+                                 joinMetrics("measured_"));
+            }
+            CometBatch batch = new CometBatch(cometOptions, thresholdMethod, nThreads);
+            long start = System.nanoTime();
+            batch.run(plates, new CometBatch.Listener(){
+                public void imageAnalyzed(CometBatch.ImageResult result){
+                    synchronized(CometPlateHarness.this){
+                        pixels += (long)result.getWidth()*result.getHeight();
+                    }
+                    result.flush();
+                }
+                public void imageCompleted(CometBatch.ImageResult result){
+                    if(!result.isOpened()){
+                        IJ.log("Could not open " + result.inFile.getName());
+                        return;
+                    }
+                    try {
+                        compare(result.imageKey, result.comets,
+                                readTruth(CometPlateGenerator.truthPath(result.inFile.getPath())));
+                    }
+                    catch(IOException ex){
+                        IJ.log(ex.toString());
+                    }
+                }
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if(reportPath != null){
+                batch.getMetrics().printReport(reportPath);
+            }
+            System.out.println(getReport(plates.length, seconds, batch.getThreads()));
+            System.out.print(getReuseReport(batch.getMetrics()));
+        }
+        catch(IOException ex){
+            return ex.toString();
+        }
+        finally {
+            if(matchOut != null) matchOut.close();
+        }
+        return null;
+    }
+
+    // Plates are images that have a ground truth file next to them
+    private static File[] listPlates(String input){
+        ArrayList<File> files = new ArrayList<File>();
+        for(String path : input.split(File.pathSeparator)){
+            if(path.length() == 0) continue;
+            File f = new File(path);
+            File[] candidates = f.isDirectory() ? f.listFiles() : new File[]{f};
+            if(candidates == null) continue;
+            Arrays.sort(candidates);
+            for(File c : candidates){
+                if(c.isFile() && !c.getName().endsWith(".csv") &&
+                   new File(CometPlateGenerator.truthPath(c.getPath())).isFile()){
+                    files.add(c);
+                }
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    private static ArrayList<CometPlateGenerator.GroundTruth> readTruth(String path)
+            throws IOException {
+        ArrayList<CometPlateGenerator.GroundTruth> truth =
+            new ArrayList<CometPlateGenerator.GroundTruth>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line = in.readLine();
+            while((line = in.readLine()) != null){
+                if(line.length() > 0) truth.add(CometPlateGenerator.GroundTruth.fromCsv(line));
+            }
+        }
+        finally {
+            in.close();
+        }
+        return truth;
+    }
+
+    private void compare(String imageKey, Comet[] comets,
+                         ArrayList<CometPlateGenerator.GroundTruth> truth){
+        truthCount += truth.size();
+        if(comets == null) return;
+
+        // Bucket the head centers so each comet only looks at nearby heads
+        HashMap<Long,ArrayList<CometPlateGenerator.GroundTruth>> grid =
+            new HashMap<Long,ArrayList<CometPlateGenerator.GroundTruth>>();
+        for(CometPlateGenerator.GroundTruth t : truth){
+            long key = ((long)(t.x / GRID) << 32) | (t.y / GRID);
+            ArrayList<CometPlateGenerator.GroundTruth> cell = grid.get(key);
+            if(cell == null){
+                cell = new ArrayList<CometPlateGenerator.GroundTruth>();
+                grid.put(key, cell);
+            }
+            cell.add(t);
+        }
+
+        for(Comet comet : comets){
+            detected++;
+            for(int i=0; i<statusCounts.length; i++){
+                if(comet.status == (1 << i)) statusCounts[i]++;
+            }
+            Rectangle r = comet.cometRoi.getBounds();
+            ArrayList<CometPlateGenerator.GroundTruth> hits =
+                new ArrayList<CometPlateGenerator.GroundTruth>();
+            for(int gx=r.x/GRID; gx<=(r.x + r.width)/GRID; gx++){
+                for(int gy=r.y/GRID; gy<=(r.y + r.height)/GRID; gy++){
+                    ArrayList<CometPlateGenerator.GroundTruth> cell =
+                        grid.get(((long)gx << 32) | gy);
+                    if(cell == null) continue;
+                    for(CometPlateGenerator.GroundTruth t : cell){
+                        if(comet.cometRoi.contains(t.x, t.y)) hits.add(t);
+                    }
+                }
+            }
+            if(hits.isEmpty()){
+                unmatched++;
+                continue;
+            }
+            truthFound += hits.size();
+            if(hits.size() > 1){
+                merged++;
+                continue;
+            }
+            matched++;
+            if(!comet.canCalculateStats()) continue;
+
+            CometPlateGenerator.GroundTruth t = hits.get(0);
+            double[] expected = {t.tailDNApercent, t.tailMoment, t.tailOliveMoment,
+                                 t.tailLength, t.headRadius};
+            double[] measured = {comet.tailDNApercent, comet.tailMoment, comet.tailOliveMoment,
+                                 comet.tailLength, comet.headLength/2.0};
+            for(int i=0; i<METRICS.length; i++){
+                errors[i].add(measured[i] - expected[i]);
+            }
+            if(matchOut != null){
+                StringBuilder sb = new StringBuilder();
+                sb.append(imageKey).append(',').append(t.id).append(',')
+                  .append(comet.id).append(',').append(comet.status);
+                for(double v : expected) sb.append(',').append(v);
+                for(double v : measured) sb.append(',').append(v);
+                matchOut.println(sb.toString());
+            }
+        }
+    }
+
+    private static String joinMetrics(String prefix){
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<METRICS.length; i++){
+            if(i > 0) sb.append(',');
+            sb.append(prefix).append(METRICS[i]);
+        }
+        return sb.toString();
+    }
+
+    private String getReport(int nImages, double seconds, int nThreads){
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT,
+                  "Throughput: %d images, %.1f Mpixel, %d comets in %.2f s on %d threads%n",
+                  nImages, pixels/1e6, detected, seconds, nThreads));
+        sb.append(String.format(Locale.ROOT,
+                  "            %.2f images/s, %.2f Mpixel/s, %.1f comets/s%n",
+                  nImages/seconds, pixels/1e6/seconds, detected/seconds));
+        sb.append(String.format(Locale.ROOT,
+                  "Detection:  %d true comets, %d found (recall %.3f), %d comets detected%n",
+                  truthCount, truthFound, truthCount == 0 ? 0 : truthFound/(double)truthCount,
+                  detected));
+        sb.append(String.format(Locale.ROOT,
+                  "            %d matched, %d merged, %d without a true comet (precision %.3f)%n",
+                  matched, merged, unmatched, detected == 0 ? 0 : matched/(double)detected));
+        sb.append(String.format(Locale.ROOT,
+                  "            status: normal=%d no_head=%d size_invalid=%d outlier=%d deleted=%d%n",
+                  statusCounts[0], statusCounts[1], statusCounts[2], statusCounts[3],
+                  statusCounts[4]));
+        sb.append(String.format(Locale.ROOT, "%-16s %8s %12s %12s %12s%n",
+                  "Metric", "N", "Bias", "MAE", "RMSE"));
+        for(int i=0; i<METRICS.length; i++){
+            ErrorStats e = errors[i];
+            sb.append(String.format(Locale.ROOT, "%-16s %8d %12.4f %12.4f %12.4f%n",
+                      METRICS[i], e.n, e.bias(), e.mae(), e.rmse()));
+        }
+        return sb.toString();
+    }
+
+    private static String getReuseReport(CometMetrics metrics){
+        StringBuilder sb = new StringBuilder();
+        String[] pools = {CometMetrics.PIXEL_BUFFERS, CometMetrics.SCRATCH_ARRAYS};
+        for(String pool : pools){
+            long[] r = metrics.getReuse(pool);
+            sb.append(String.format(Locale.ROOT, "Reuse:      %s %d of %d (%.1f%%)%n", pool,
+                      r[1], r[0], r[0] == 0 ? 0 : 100.0*r[1]/r[0]));
+            // Pixel buffers are asked once per image and plane, scratch
+            // arrays once per comet
+            if(pool.equals(CometMetrics.SCRATCH_ARRAYS) && r[0] > 1 && r[1] == 0){
+                sb.append("WARNING:    no ").append(pool)
+                  .append(" reused; the work did not run on the batch workers\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    // Signed errors of one measurement
+    private static class ErrorStats {
+        long n;
+        double sum, sumAbs, sumSq;
+
+        void add(double err){
+            n++;
+            sum += err;
+            sumAbs += Math.abs(err);
+            sumSq += err*err;
+        }
+
+        double bias(){
+            return (n == 0) ? 0 : sum/n;
+        }
+
+        double mae(){
+            return (n == 0) ? 0 : sumAbs/n;
+        }
+
+        double rmse(){
+            return (n == 0) ? 0 : Math.sqrt(sumSq/n);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/bash
+
+# Compile the plugin and the benchmarks, then run the benchmarks.
+# Arguments are passed on, e.g. bench/bench.sh filter=setThreshold time=500
+# A class name as first argument runs another tool in bench/, e.g.
+# bench/bench.sh CometPlateGenerator output=plate.tif
+cd "$(dirname "$0")/.."
+
+# Create directories if they don't exist
+mkdir -p build-bench
+
+# Set ImageJ JAR path and Java path
+IMAGEJ_JAR="/Applications/Fiji/jars/ij-1.54p.jar"
+JAVA_BIN="/Applications/Fiji/java/macos-arm64/zulu8.84.0.15-ca-fx-jdk8.0.442-macosx_aarch64/bin"
+
+# Compile the plugin sources together with the benchmarks
+$JAVA_BIN/javac -cp "$IMAGEJ_JAR" -d build-bench *.java bench/*.java || exit 1
+
+MAIN_CLASS="CometBenchmark"
+if [ $# -gt 0 ] && [[ "$1" != *=* ]]; then
+    MAIN_CLASS="$1"
+    shift
+fi
+
+# A fixed heap keeps garbage collection comparable between runs
+$JAVA_BIN/java -Xms2g -Xmx2g -Djava.awt.headless=true -cp "$IMAGEJ_JAR:build-bench" $MAIN_CLASS "$@"